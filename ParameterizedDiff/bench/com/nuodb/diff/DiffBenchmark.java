@@ -0,0 +1,504 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import java.util.regex.Pattern;
+
+import com.nuodb.diff.FilterByRegex.AbstractedString;
+
+/**
+ * DiffBenchmark measures each stage of the diff pipeline separately,
+ * on synthetic log-like inputs whose size, edit density and amount
+ * of line repetition can be controlled from the command line:
+ * <ul>
+ * <li>abstract: constructing an AbstractedString for every line.
+ * <li>intern: interning both sequences into token ids.
+ * <li>compute.<i>algorithm</i>: finding the changes between the
+ * interned sequences, for each algorithm.
+ * <li>count.<i>counter</i>: counting the changes without finding
+ * them, for each DistanceCounter.
+ * <li>getDifferences: the whole of DiffEngine.getDifferences().
+ * <li>coalesceRegions: coalescing the line-by-line differences.
+ * <li>emitRegions: the whole of DiffEngine.emitRegions(), which
+ * coalesces regions from the compact EditScript instead.
+ * <li>format: formatting the coalesced regions as text.
+ * </ul>
+ * Each stage is warmed up, then run for a number of timed iterations;
+ * the report gives its throughput and, where the JVM can measure it,
+ * its allocation rate, in the manner of JMH's gc profiler.
+ * <p>
+ * Usage: DiffBenchmark [-n lines] [-e editDensity] [-r repetition]
+ * [-w warmupIterations] [-i iterations] [-t iterationMillis] [stage...];
+ * if stages are named, only stages whose names begin with one of them run.
+ */
+public class DiffBenchmark
+{
+    public static void main(String[] argv)
+    {
+        int     lines = 2000;
+        double  editDensity = 0.05;
+        double  repetition = 0.3;
+        int     warmupIterations = 5;
+        int     iterations = 10;
+        long    iterationMillis = 500;
+        List<String> selected = new ArrayList<String>();
+
+        for (int i = 0; i < argv.length; i++) {
+            if (argv[i].equals("-n") && i+1 < argv.length) {
+                lines = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equals("-e") && i+1 < argv.length) {
+                editDensity = Double.parseDouble(argv[++i]);
+            } else if (argv[i].equals("-r") && i+1 < argv.length) {
+                repetition = Double.parseDouble(argv[++i]);
+            } else if (argv[i].equals("-w") && i+1 < argv.length) {
+                warmupIterations = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equals("-i") && i+1 < argv.length) {
+                iterations = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equals("-t") && i+1 < argv.length) {
+                iterationMillis = Long.parseLong(argv[++i]);
+            } else if (!argv[i].startsWith("-")) {
+                selected.add(argv[i]);
+            } else {
+                System.err.printf("Unrecognized option: %s%n", argv[i]);
+                System.err.println("Usage: DiffBenchmark [-n lines] [-e editDensity] [-r repetition] [-w warmupIterations] [-i iterations] [-t iterationMillis] [stage...]");
+                System.exit(1);
+            }
+        }
+
+        Inputs inputs = new Inputs(lines, editDensity, repetition, 0x5eed);
+
+        System.out.printf("# %d lines, edit density %.3f, repetition %.3f: %d changes, %d regions%n",
+            lines, editDensity, repetition, inputs.differences.size(), inputs.regions.size());
+        System.out.printf("%-24s %14s %10s %14s %14s%n", "Benchmark", "ops/s", "error", "alloc MB/s", "alloc B/op");
+
+        for (Stage stage: stages(inputs)) {
+
+            if (isSelected(stage.name, selected)) {
+                new Measurement(stage, warmupIterations, iterations, iterationMillis).report(System.out);
+            }
+        }
+    }
+
+    private static boolean isSelected(String name, List<String> selected)
+    {
+        if (selected.isEmpty()) {
+            return true;
+        }
+
+        for (String prefix: selected) {
+
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the stages of the pipeline, in order.
+     */
+    private static List<Stage> stages(final Inputs inputs)
+    {
+        List<Stage> stages = new ArrayList<Stage>();
+
+        stages.add(new Stage("abstract") {
+            int run()
+            {
+                int result = 0;
+
+                for (String line: inputs.linesA) {
+                    result += new AbstractedString(line, inputs.patterns).hashCode();
+                }
+
+                return result;
+            }
+        });
+
+        stages.add(new Stage("intern") {
+            int run()
+            {
+                TokenTable<AbstractedString> tokens = new TokenTable<AbstractedString>();
+                return tokens.intern(inputs.abstractedA).length + tokens.intern(inputs.abstractedB).length;
+            }
+        });
+
+        for (final String name: new String[] { "lcs", "myers", "hirschberg", "patience", "anchored" }) {
+            final DiffAlgorithm algorithm = DiffEngine.getAlgorithm(name);
+
+            stages.add(new Stage("compute." + name) {
+                int run()
+                {
+                    CountingSink sink = new CountingSink();
+                    algorithm.computeChanges(inputs.idsA, inputs.idsB, sink);
+                    return sink.count;
+                }
+            });
+        }
+
+        for (final String name: new String[] { "myers", "bitparallel" }) {
+            final DistanceCounter counter = DiffEngine.getDistanceCounter(name);
+
+            stages.add(new Stage("count." + name) {
+                int run()
+                {
+                    return counter.countDifferences(inputs.idsA, inputs.idsB, Integer.MAX_VALUE - 1);
+                }
+            });
+        }
+
+        stages.add(new Stage("getDifferences") {
+            int run()
+            {
+                return new DiffEngine<AbstractedString>(inputs.abstractedA, inputs.abstractedB).getDifferences().size();
+            }
+        });
+
+        stages.add(new Stage("coalesceRegions") {
+            int run()
+            {
+                return DiffEngine.coalesceRegions(inputs.differences).size();
+            }
+        });
+
+        stages.add(new Stage("emitRegions") {
+            int run()
+            {
+                final int[] regions = new int[1];
+
+                try {
+                    new DiffEngine<AbstractedString>(inputs.abstractedA, inputs.abstractedB).emitRegions(new RegionSink() {
+                        public void addRegion(DiffRegion region)
+                        {
+                            regions[0]++;
+                        }
+                    });
+                } catch (IOException cannotHappen) {
+                    throw new IllegalStateException(cannotHappen);
+                }
+
+                return regions[0];
+            }
+        });
+
+        stages.add(new Stage("format") {
+            int run()
+            {
+                int result = 0;
+
+                for (Object region: inputs.regions) {
+                    result += region.toString().length();
+                }
+
+                return result;
+            }
+        });
+
+        return stages;
+    }
+
+    /**
+     * A Stage is one step of the pipeline being measured.
+     */
+    private static abstract class Stage
+    {
+        Stage(String name)
+        {
+            this.name = name;
+        }
+
+        final String name;
+
+        /**
+         * Run the stage once.
+         * @return a value derived from the stage's result, so
+         * that the JIT can't eliminate the work as dead code.
+         */
+        abstract int run();
+    }
+
+    /**
+     * A Measurement runs a stage and reports its throughput and allocation rate.
+     */
+    private static class Measurement
+    {
+        Measurement(Stage stage, int warmupIterations, int iterations, long iterationMillis)
+        {
+            this.stage              = stage;
+            this.iterationMillis    = iterationMillis;
+
+            for (int i = 0; i < warmupIterations; i++) {
+                iterate();
+            }
+
+            opsPerSecond = new double[iterations];
+            bytesPerOp = new double[iterations];
+
+            for (int i = 0; i < iterations; i++) {
+                iterate();
+                opsPerSecond[i] = lastOps * 1e9 / lastNanos;
+                bytesPerOp[i] = lastBytes < 0? -1: (double)lastBytes / lastOps;
+            }
+        }
+
+        private final Stage stage;
+        private final long iterationMillis;
+        private final double[] opsPerSecond;
+        private final double[] bytesPerOp;
+
+        private long lastOps;
+        private long lastNanos;
+        private long lastBytes;
+
+        /**
+         * Accumulates the stages' results; see Stage.run().
+         */
+        static volatile int sink;
+
+        /**
+         * Run the stage repeatedly for one iteration.
+         */
+        private void iterate()
+        {
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long deadline = start + iterationMillis * 1000000L;
+            long ops = 0;
+            long now;
+            int  result = 0;
+
+            do {
+                result += stage.run();
+                ops++;
+                now = System.nanoTime();
+            } while (now < deadline);
+
+            long bytesAfter = allocatedBytes();
+            sink += result;
+
+            lastOps   = ops;
+            lastNanos = now - start;
+            lastBytes = bytesBefore < 0 || bytesAfter < 0? -1: bytesAfter - bytesBefore;
+        }
+
+        void report(PrintStream out)
+        {
+            double meanOps = mean(opsPerSecond);
+            double meanBytes = mean(bytesPerOp);
+
+            // A 99.9% confidence interval, assuming normality, as JMH reports.
+            double error = 3.29 * standardDeviation(opsPerSecond, meanOps) / Math.sqrt(opsPerSecond.length);
+
+            if (meanBytes < 0) {
+                out.printf("%-24s %14.3f %10.3f %14s %14s%n", stage.name, meanOps, error, "n/a", "n/a");
+            } else {
+                out.printf("%-24s %14.3f %10.3f %14.3f %14.1f%n", stage.name, meanOps, error, meanBytes * meanOps / (1024 * 1024), meanBytes);
+            }
+        }
+
+        private static double mean(double[] values)
+        {
+            double sum = 0;
+
+            for (double value: values) {
+                if (value < 0) {
+                    return -1;
+                }
+                sum += value;
+            }
+
+            return sum / values.length;
+        }
+
+        private static double standardDeviation(double[] values, double mean)
+        {
+            if (values.length < 2) {
+                return 0;
+            }
+
+            double sum = 0;
+
+            for (double value: values) {
+                sum += (value - mean) * (value - mean);
+            }
+
+            return Math.sqrt(sum / (values.length - 1));
+        }
+
+        /**
+         * @return the number of bytes this thread has allocated,
+         * or -1 if the JVM can't tell.
+         */
+        private static long allocatedBytes()
+        {
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+
+            return -1;
+        }
+    }
+
+    /**
+     * A CountingSink counts the changes it's given.
+     */
+    private static class CountingSink implements ChangeSink
+    {
+        int count = 0;
+
+        public void addChange(int startA, int endA, int startB, int endB)
+        {
+            count++;
+        }
+    }
+
+    /**
+     * Inputs holds the synthetic inputs to every stage, prepared up front.
+     */
+    private static class Inputs
+    {
+        /**
+         * Generate a pair of files.
+         * @param lines the number of lines in the first file.
+         * @param editDensity the fraction of lines inserted, removed or changed in the second file.
+         * @param repetition the fraction of lines drawn from a small set of recurring lines.
+         * @param seed the random seed.
+         */
+        Inputs(int lines, double editDensity, double repetition, long seed)
+        {
+            Random random = new Random(seed);
+
+            linesA = new ArrayList<String>(lines);
+            linesB = new ArrayList<String>(lines);
+
+            for (int i = 0; i < lines; i++) {
+                linesA.add(line(random, repetition));
+            }
+
+            for (String line: linesA) {
+
+                if (random.nextDouble() >= editDensity) {
+                    linesB.add(line);
+                    continue;
+                }
+
+                switch (random.nextInt(3)) {
+                    case 0:     // Removed.
+                        break;
+                    case 1:     // Changed.
+                        linesB.add(line(random, repetition));
+                        break;
+                    default:    // Inserted after.
+                        linesB.add(line);
+                        linesB.add(line(random, repetition));
+                        break;
+                }
+            }
+
+            patterns = new PatternSet();
+            patterns.add(Pattern.compile("(\\w+) \\d\\d:\\d\\d:\\d\\d\\.\\d+ (.*)"));
+            patterns.add(Pattern.compile("txn (\\w+) id=\\d+ (.*)"));
+            patterns.add(Pattern.compile("elapsed \\d+ms (.*)"));
+
+            abstractedA = abstracted(linesA);
+            abstractedB = abstracted(linesB);
+
+            TokenTable<AbstractedString> tokens = new TokenTable<AbstractedString>();
+            idsA = tokens.intern(abstractedA);
+            idsB = tokens.intern(abstractedB);
+
+            differences = new DiffEngine<AbstractedString>(abstractedA, abstractedB).getDifferences();
+            regions = DiffEngine.coalesceRegions(differences);
+        }
+
+        final List<String> linesA;
+        final List<String> linesB;
+        final PatternSet patterns;
+        final List<AbstractedString> abstractedA;
+        final List<AbstractedString> abstractedB;
+        final int[] idsA;
+        final int[] idsB;
+        final List<Difference> differences;
+        final List<Object> regions;
+
+        private static final String[] LEVELS = { "INFO", "WARN", "DEBUG", "ERROR" };
+        private static final String[] OPERATIONS = { "begin", "commit", "rollback", "insert", "update", "delete" };
+
+        /**
+         * The number of distinct recurring lines.
+         */
+        private static final int RECURRING_LINES = 64;
+
+        /**
+         * Generate a log-like line.
+         */
+        private static String line(Random random, double repetition)
+        {
+            if (random.nextDouble() < repetition) {
+                int which = random.nextInt(RECURRING_LINES);
+                return String.format("elapsed %dms recurring event %d", which * 7, which);
+            }
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    return String.format("%s %02d:%02d:%02d.%03d worker %d processed %d rows",
+                        LEVELS[random.nextInt(LEVELS.length)],
+                        random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000),
+                        random.nextInt(16), random.nextInt(100000));
+                case 1:
+                    return String.format("txn %s id=%d table t%d",
+                        OPERATIONS[random.nextInt(OPERATIONS.length)], random.nextInt(1000000), random.nextInt(100));
+                default:
+                    return String.format("checkpoint %d at offset %d", random.nextInt(1000), random.nextLong() >>> 20);
+            }
+        }
+
+        private List<AbstractedString> abstracted(List<String> lines)
+        {
+            AbstractedString[] result = new AbstractedString[lines.size()];
+
+            for (int i = 0; i < result.length; i++) {
+                result[i] = new AbstractedString(lines.get(i), patterns);
+            }
+
+            return Arrays.asList(result);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An AbstractCache remembers the abstracts of recently seen lines,
+ * so a line that repeats throughout a file is only matched against
+ * the patterns once, and every copy of it shares one abstract String.
+ * The cache is bounded: it holds at most a fixed number of lines,
+ * evicting the least recently used line to make room for a new one.
+ * <p>
+ * Lines that match no pattern are cached too, but only to record that
+ * they don't match; nothing is shared for them. Their abstract is
+ * their own text, which each AbstractedString already holds (or, for a
+ * mapped line, reads from the file), so a shared copy would save no
+ * memory.
+ * <p>
+ * The cache is split into independently locked segments, chosen by
+ * the hash of the line, so threads abstracting lines concurrently
+ * seldom contend for the same lock.
+ */
+class AbstractCache
+{
+    /**
+     * @param capacity the maximum number of lines cached. It's divided
+     * among the segments, rounding up, so a capacity that isn't a
+     * multiple of SEGMENTS may cache up to SEGMENTS-1 more lines; a
+     * capacity below SEGMENTS caches one line per segment.
+     */
+    AbstractCache(int capacity)
+    {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid cache capacity " + capacity);
+        }
+
+        int perSegment = (capacity + SEGMENTS - 1) / SEGMENTS;
+
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * The number of independently locked segments.
+     */
+    static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * Look up a line.
+     * @param key the line.
+     * @return the line's cached abstract, or null if it isn't cached.
+     */
+    String get(LineKey key)
+    {
+        Segment segment = segmentOf(key);
+
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    /**
+     * Cache a line's abstract, unless another thread got there first.
+     * @param key the line.
+     * @param value the line's abstract.
+     * @return the abstract now cached for the line, so that
+     * every copy of the line shares the same instance.
+     */
+    String put(LineKey key, String value)
+    {
+        Segment segment = segmentOf(key);
+
+        synchronized (segment) {
+            String existing = segment.get(key);
+
+            if (existing != null) {
+                return existing;
+            }
+
+            segment.put(key.retain(), value);
+            return value;
+        }
+    }
+
+    private Segment segmentOf(LineKey key)
+    {
+        // Spread the high bits of the hash into the low ones.
+        int hash = key.hash ^ (key.hash >>> 16);
+        return segments[hash & (SEGMENTS - 1)];
+    }
+
+    /**
+     * A Segment is an access-ordered map that evicts its
+     * least recently used entry once it's full.
+     */
+    private static class Segment extends LinkedHashMap<LineKey, String>
+    {
+        private static final long serialVersionUID = 1L;
+
+        Segment(int capacity)
+        {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        private final int capacity;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LineKey, String> eldest)
+        {
+            return size() > capacity;
+        }
+    }
+
+    /**
+     * A LineKey identifies a line by its text. The text may be a
+     * transient view, such as a line of a mapped file; it's only
+     * copied into a String if the key is retained by the cache.
+     */
+    static class LineKey
+    {
+        /**
+         * @param text the text of the line.
+         */
+        LineKey(CharSequence text)
+        {
+            this(text, hashOf(text));
+        }
+
+        private LineKey(CharSequence text, int hash)
+        {
+            this.text   = text;
+            this.hash   = hash;
+        }
+
+        private final CharSequence text;
+        private final int hash;
+
+        /**
+         * @return a key for the same text that doesn't
+         * depend on the storage backing this key's text.
+         */
+        LineKey retain()
+        {
+            return text instanceof String? this: new LineKey(text.toString(), hash);
+        }
+
+        /**
+         * Hash text as String.hashCode() would.
+         */
+        private static int hashOf(CharSequence text)
+        {
+            if (text instanceof String) {
+                return text.hashCode();
+            }
+
+            int hash = 0;
+
+            for (int i = 0; i < text.length(); i++) {
+                hash = 31 * hash + text.charAt(i);
+            }
+
+            return hash;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof LineKey) || ((LineKey)other).hash != hash) {
+                return false;
+            }
+
+            CharSequence theirs = ((LineKey)other).text;
+
+            if (text.length() != theirs.length()) {
+                return false;
+            }
+
+            for (int i = 0; i < text.length(); i++) {
+
+                if (text.charAt(i) != theirs.charAt(i)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,449 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * AnchoredDiff splits a large comparison into independent segments
+ * that can be compared on multiple cores. A pre-pass hashes every
+ * block of blockSize consecutive elements of each sequence with a
+ * rolling hash; blocks that occur exactly once in each sequence, and
+ * really are equal, are candidate anchors. The longest run of anchors
+ * that's increasing in both sequences is kept, each anchor is extended
+ * along its diagonal, and the gaps between anchors are compared by a
+ * core DiffAlgorithm concurrently. Each gap's changes are recorded in
+ * its own EditScript, at positions in the whole sequences, and the
+ * scripts are replayed front to back once they're all complete.
+ * <p>
+ * Comparisons too small to be worth splitting, or with no anchors,
+ * are given to the core algorithm directly. Like PatienceDiff, the
+ * resulting edit script is not necessarily minimal: a block that's
+ * unique to both sequences is assumed to match.
+ */
+public class AnchoredDiff implements DiffAlgorithm
+{
+    /**
+     * Construct an AnchoredDiff that compares segments
+     * with an LcsDiff, in the common ForkJoinPool.
+     */
+    public AnchoredDiff()
+    {
+        this(new LcsDiff());
+    }
+
+    /**
+     * Construct an AnchoredDiff that compares segments in the common ForkJoinPool.
+     * @param core the algorithm that compares the segments.
+     */
+    public AnchoredDiff(DiffAlgorithm core)
+    {
+        this(core, ForkJoinPool.commonPool(), DEFAULT_BLOCK_SIZE, DEFAULT_SPLIT_THRESHOLD);
+    }
+
+    /**
+     * Construct an AnchoredDiff.
+     * @param core the algorithm that compares the segments.
+     * @param pool the pool that compares the segments.
+     * @param blockSize the number of elements hashed as a block.
+     * @param splitThreshold the number of LCS table cells at which
+     * a comparison is split; Long.MAX_VALUE disables splitting.
+     */
+    public AnchoredDiff(DiffAlgorithm core, ForkJoinPool pool, int blockSize, long splitThreshold)
+    {
+        this.core           = core;
+        this.pool           = pool;
+        this.blockSize      = Math.max(1, blockSize);
+        this.splitThreshold = splitThreshold;
+    }
+
+    /**
+     * The default block size: long enough that a block of log lines
+     * that's unique to both sequences is very likely a real match.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 16;
+
+    /**
+     * The default split threshold: below about a million cells,
+     * the core algorithm is faster than the pre-pass.
+     */
+    public static final long DEFAULT_SPLIT_THRESHOLD = 1L << 20;
+
+    /**
+     * The multiplier of the rolling hash.
+     */
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final DiffAlgorithm core;
+    private final ForkJoinPool pool;
+    private final int blockSize;
+    private final long splitThreshold;
+
+    /**
+     * @see DiffAlgorithm#computeChanges(int[], int[], ChangeSink)
+     */
+    public void computeChanges(int[] sequenceA, int[] sequenceB, ChangeSink changes)
+    {
+        int[] anchors = null;
+
+        if ((long)sequenceA.length * sequenceB.length >= splitThreshold) {
+            anchors = findAnchors(sequenceA, sequenceB);
+        }
+
+        if (anchors == null) {
+            core.computeChanges(sequenceA, sequenceB, changes);
+            return;
+        }
+
+        // Segments are quadruples (fromA, toA, fromB, toB): the gaps
+        // before, between and after the anchors.
+        int anchorCount = anchors.length / 3;
+        int[] segments = new int[(anchorCount + 1) * 4];
+        int endA = 0;
+        int endB = 0;
+
+        for (int k = 0; k < anchorCount; k++) {
+            setSegment(segments, k, endA, anchors[k*3], endB, anchors[k*3+1]);
+            endA = anchors[k*3] + anchors[k*3+2];
+            endB = anchors[k*3+1] + anchors[k*3+2];
+        }
+
+        setSegment(segments, anchorCount, endA, sequenceA.length, endB, sequenceB.length);
+
+        EditScript[] scripts = new EditScript[anchorCount + 1];
+        pool.invoke(new Segments(sequenceA, sequenceB, segments, scripts, 0, scripts.length));
+
+        for (EditScript script: scripts) {
+            script.replay(changes);
+        }
+    }
+
+    private static void setSegment(int[] segments, int segment, int fromA, int toA, int fromB, int toB)
+    {
+        segments[segment*4]     = fromA;
+        segments[segment*4+1]   = toA;
+        segments[segment*4+2]   = fromB;
+        segments[segment*4+3]   = toB;
+    }
+
+    /**
+     * Find the anchors of two sequences.
+     * @return the anchors as triples (startA, startB, length), ascending
+     * in both sequences and not overlapping; or null if there are none.
+     */
+    int[] findAnchors(int[] sequenceA, int[] sequenceB)
+    {
+        if (sequenceA.length < blockSize || sequenceB.length < blockSize) {
+            return null;
+        }
+
+        long[] hashesA = hashBlocks(sequenceA);
+        long[] hashesB = hashBlocks(sequenceB);
+        BlockTable blocksA = new BlockTable(hashesA);
+        BlockTable blocksB = new BlockTable(hashesB);
+
+        // Collect the unique matching blocks in B order. Consecutive
+        // blocks of a common run are all matches, so only the first
+        // block of each run along a diagonal is kept.
+        int[] matchA = new int[Math.min(hashesA.length, hashesB.length)];
+        int[] matchB = new int[matchA.length];
+        int   matches = 0;
+        int   runEndB = 0;
+
+        for (int j = 0; j < hashesB.length; j++) {
+
+            if (j < runEndB) {
+                continue;
+            }
+
+            int i = blocksA.find(hashesB[j]);
+
+            if (i < 0 || blocksB.find(hashesB[j]) != j || !isSameBlock(sequenceA, i, sequenceB, j)) {
+                continue;
+            }
+
+            matchA[matches] = i;
+            matchB[matches] = j;
+            matches++;
+
+            // Skip the blocks that follow this one along its diagonal.
+            int runEndA = i + 1;
+            runEndB = j + 1;
+
+            while (runEndA < hashesA.length && runEndB < hashesB.length &&
+                   sequenceA[runEndA + blockSize - 1] == sequenceB[runEndB + blockSize - 1]) {
+                runEndA++;
+                runEndB++;
+            }
+        }
+
+        if (matches == 0) {
+            return null;
+        }
+
+        // The longest run of matches increasing in A as well as B, by
+        // patience sorting: tails[k] is the match ending the best run of
+        // length k+1 so far, and previous[] links each match to its
+        // predecessor in its run.
+        int[] tails     = new int[matches];
+        int[] previous  = new int[matches];
+        int   longest   = 0;
+
+        for (int m = 0; m < matches; m++) {
+
+            int low  = 0;
+            int high = longest;
+
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+
+                if (matchA[tails[mid]] < matchA[m]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            tails[low]  = m;
+            previous[m] = low > 0? tails[low-1]: -1;
+
+            if (low == longest) {
+                longest++;
+            }
+        }
+
+        int[] chain = new int[longest];
+
+        for (int m = tails[longest-1], k = longest - 1; m >= 0; m = previous[m], k--) {
+            chain[k] = m;
+        }
+
+        // Extend each anchor along its diagonal, as far as the
+        // previous anchor behind it and the next one ahead of it.
+        int[] anchors = new int[longest * 3];
+        int   count   = 0;
+        int   endA    = 0;
+        int   endB    = 0;
+
+        for (int k = 0; k < longest; k++) {
+
+            int startA = matchA[chain[k]];
+            int startB = matchB[chain[k]];
+
+            if (startA < endA || startB < endB) {
+                // Overlaps the extension of the previous anchor.
+                continue;
+            }
+
+            int limitA = k+1 < longest? matchA[chain[k+1]]: sequenceA.length;
+            int limitB = k+1 < longest? matchB[chain[k+1]]: sequenceB.length;
+
+            while (startA > endA && startB > endB && sequenceA[startA-1] == sequenceB[startB-1]) {
+                startA--;
+                startB--;
+            }
+
+            int stopA = matchA[chain[k]] + blockSize;
+            int stopB = matchB[chain[k]] + blockSize;
+
+            while (stopA < limitA && stopB < limitB && sequenceA[stopA] == sequenceB[stopB]) {
+                stopA++;
+                stopB++;
+            }
+
+            anchors[count*3]    = startA;
+            anchors[count*3+1]  = startB;
+            anchors[count*3+2]  = stopA - startA;
+            count++;
+
+            endA = stopA;
+            endB = stopB;
+        }
+
+        return Arrays.copyOf(anchors, count * 3);
+    }
+
+    /**
+     * Hash every block of a sequence with a polynomial rolling hash.
+     * @return the hash of the block starting at each position.
+     */
+    private long[] hashBlocks(int[] sequence)
+    {
+        long[] hashes = new long[sequence.length - blockSize + 1];
+        long power = 1;
+        long hash = 0;
+
+        for (int i = 0; i < blockSize; i++) {
+            hash = hash * HASH_MULTIPLIER + sequence[i];
+            power *= HASH_MULTIPLIER;
+        }
+
+        hashes[0] = hash;
+
+        for (int i = 1; i < hashes.length; i++) {
+            hash = hash * HASH_MULTIPLIER + sequence[i + blockSize - 1] - power * sequence[i-1];
+            hashes[i] = hash;
+        }
+
+        return hashes;
+    }
+
+    private boolean isSameBlock(int[] sequenceA, int i, int[] sequenceB, int j)
+    {
+        for (int k = 0; k < blockSize; k++) {
+            if (sequenceA[i+k] != sequenceB[j+k]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * A BlockTable maps the hash of each block of a sequence to the
+     * block's position, if only one block has that hash. It's an open
+     * addressing table of primitives, so a million blocks are a few
+     * arrays rather than a million boxed entries.
+     */
+    private static class BlockTable
+    {
+        BlockTable(long[] hashes)
+        {
+            int capacity = Integer.highestOneBit(Math.max(1, hashes.length) * 2 - 1) * 2;
+
+            this.keys       = new long[capacity];
+            this.positions  = new int[capacity];
+            this.mask       = capacity - 1;
+
+            Arrays.fill(positions, EMPTY);
+
+            for (int i = 0; i < hashes.length; i++) {
+                int slot = slot(hashes[i]);
+
+                if (positions[slot] == EMPTY) {
+                    keys[slot]      = hashes[i];
+                    positions[slot] = i;
+                } else {
+                    positions[slot] = REPEATED;
+                }
+            }
+        }
+
+        private static final int EMPTY      = -1;
+        private static final int REPEATED   = -2;
+
+        private final long[] keys;
+        private final int[] positions;
+        private final int mask;
+
+        /**
+         * @return the position of the only block with a hash, or a negative number.
+         */
+        int find(long hash)
+        {
+            return positions[slot(hash)];
+        }
+
+        /**
+         * @return the slot that holds a hash, or the empty slot where it belongs.
+         */
+        private int slot(long hash)
+        {
+            int slot = (int)(hash ^ (hash >>> 32)) & mask;
+
+            while (positions[slot] != EMPTY && keys[slot] != hash) {
+                slot = (slot + 1) & mask;
+            }
+
+            return slot;
+        }
+    }
+
+    /**
+     * A Segments task compares the segments [fromSegment..toSegment),
+     * splitting itself in half until there is one segment per task.
+     */
+    private class Segments extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        Segments(int[] sequenceA, int[] sequenceB, int[] segments, EditScript[] scripts, int fromSegment, int toSegment)
+        {
+            this.sequenceA      = sequenceA;
+            this.sequenceB      = sequenceB;
+            this.segments       = segments;
+            this.scripts        = scripts;
+            this.fromSegment    = fromSegment;
+            this.toSegment      = toSegment;
+        }
+
+        private final int[] sequenceA;
+        private final int[] sequenceB;
+        private final int[] segments;
+        private final EditScript[] scripts;
+        private final int fromSegment;
+        private final int toSegment;
+
+        @Override
+        protected void compute()
+        {
+            if (toSegment - fromSegment == 1) {
+
+                int fromA = segments[fromSegment*4];
+                int toA   = segments[fromSegment*4+1];
+                int fromB = segments[fromSegment*4+2];
+                int toB   = segments[fromSegment*4+3];
+
+                EditScript script = new EditScript();
+
+                if (fromA == toA || fromB == toB) {
+                    script.addChange(fromA, toA, fromB, toB);
+                } else {
+                    core.computeChanges(
+                        Arrays.copyOfRange(sequenceA, fromA, toA),
+                        Arrays.copyOfRange(sequenceB, fromB, toB),
+                        new RebasingChangeSink(script, fromA, fromB)
+                    );
+                }
+
+                scripts[fromSegment] = script;
+
+            } else {
+
+                int midSegment = (fromSegment + toSegment) / 2;
+
+                invokeAll(
+                    new Segments(sequenceA, sequenceB, segments, scripts, fromSegment, midSegment),
+                    new Segments(sequenceA, sequenceB, segments, scripts, midSegment, toSegment)
+                );
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.util.List;
+
+/**
+ * A BaselineIndex prepares one sequence, typically an expected output,
+ * to be compared against many others. The baseline's elements are
+ * interned once, when the index is built; each comparison then only
+ * interns its own sequence, extending the baseline's TokenTable
+ * without modifying it, so any number of threads can compare
+ * sequences against the same index concurrently.
+ * <p>
+ * Only the interning is shared. The baseline's elements are hashed and
+ * given ids once, and the TokenTable keeps their hashes, so comparisons
+ * never hash them again. Nothing specific to an algorithm is
+ * precomputed, such as the unique elements that PatienceDiff and
+ * AnchoredDiff anchor on, or AnchoredDiff's block hashes: an algorithm
+ * only sees the ids left once the prefix and suffix common to both
+ * sequences are stripped, and those depend on the other sequence; and
+ * PatienceDiff counts elements unique within each gap, not within the
+ * whole baseline. Each comparison finds them afresh, in linear time.
+ * <p>
+ * The baseline's elements must already be in their final form, such
+ * as fully abstracted lines, since the index holds on to them.
+ */
+public class BaselineIndex<T extends Comparable<T>>
+{
+    /**
+     * Index a baseline.
+     * @param baseline the baseline sequence.
+     */
+    public BaselineIndex(List<T> baseline)
+    {
+        long start = DiffStatistics.start();
+        this.baseline   = baseline;
+        this.tokens     = new TokenTable<T>();
+        this.ids        = tokens.intern(baseline);
+        DiffStatistics.stop(DiffStatistics.Phase.Intern, start);
+    }
+
+    private final List<T> baseline;
+
+    /**
+     * The table that interned the baseline, and the ids it assigned.
+     */
+    private final TokenTable<T> tokens;
+    private final int[] ids;
+
+    /**
+     * @return the baseline sequence.
+     */
+    public List<T> getBaseline()
+    {
+        return baseline;
+    }
+
+    /**
+     * @return the number of distinct elements in the baseline.
+     */
+    public int getDistinctElements()
+    {
+        return tokens.size();
+    }
+
+    /**
+     * Prepare to compare the baseline with another sequence.
+     * @param sequenceB the other sequence.
+     * @param algorithm the algorithm that compares them.
+     * @return an engine that compares the baseline, as sequence A, with sequenceB.
+     */
+    public DiffEngine<T> compareWith(List<T> sequenceB, DiffAlgorithm algorithm)
+    {
+        return new DiffEngine<T>(baseline, sequenceB, algorithm, tokens, ids);
+    }
+}
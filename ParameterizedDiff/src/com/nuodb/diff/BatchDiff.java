@@ -0,0 +1,439 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.io.*;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.nuodb.diff.FilterByRegex.AbstractedString;
+
+/**
+ * A BatchDiff compares many pairs of files in one run, so the patterns
+ * are compiled once and the JVM stays warm from one pair to the next.
+ * The pairs come from two directory trees, matched by relative path,
+ * or from a manifest file listing one pair per line.
+ * <p>
+ * Pairs are compared concurrently on a bounded pool of threads, but
+ * results are reported in the order the pairs were added: for each pair
+ * that differs, a "diff fileA fileB" header followed by its coalesced
+ * differences (or, in quiet mode, just "Files fileA and fileB differ"),
+ * then a summary line for the whole batch.
+ * <p>
+ * A first (expected) file shared by several pairs, such as a baseline
+ * compared with the outputs of many runs, is loaded, abstracted and
+ * indexed once, by whichever pair needs it first; the other pairs
+ * compare against the same BaselineIndex, and it's released when the
+ * last of them is done with it.
+ */
+class BatchDiff
+{
+    /**
+     * @param algorithm the algorithm that compares each pair.
+     * @param counter counts each pair's differences in quiet mode,
+     * if the algorithm finds minimal edit scripts.
+     * @param threads the number of pairs compared at once.
+     * @param quietMode if true, don't emit the differences.
+     */
+    BatchDiff(DiffAlgorithm algorithm, DistanceCounter counter, int threads, boolean quietMode)
+    {
+        this.algorithm  = algorithm;
+        this.counter    = counter;
+        this.threads    = Math.max(1, threads);
+        this.quietMode  = quietMode;
+    }
+
+    private final DiffAlgorithm algorithm;
+    private final DistanceCounter counter;
+    private final int threads;
+    private final boolean quietMode;
+
+    /**
+     * The pairs of files to compare, in order.
+     */
+    private final List<File[]> pairs = new ArrayList<File[]>();
+
+    /**
+     * The first files shared by more than one pair, by path.
+     */
+    private final Map<String, SharedBaseline> baselines = new HashMap<String, SharedBaseline>();
+
+    /**
+     * Add a pair of files.
+     * @param fileA the first (expected) file, or null if only fileB exists.
+     * @param fileB the second (actual) file, or null if only fileA exists.
+     */
+    void addPair(File fileA, File fileB)
+    {
+        pairs.add(new File[] { fileA, fileB });
+    }
+
+    /**
+     * Add every file in two directory trees, paired by relative path.
+     * A file present in only one tree is reported as a difference.
+     * @param dirA the first (expected) tree.
+     * @param dirB the second (actual) tree.
+     */
+    void addTrees(File dirA, File dirB)
+    {
+        TreeSet<String> relativePaths = new TreeSet<String>();
+        listFiles(dirA, "", relativePaths);
+        listFiles(dirB, "", relativePaths);
+
+        for (String path: relativePaths) {
+            File fileA = new File(dirA, path);
+            File fileB = new File(dirB, path);
+            addPair(fileA.isFile()? fileA: null, fileB.isFile()? fileB: null);
+        }
+    }
+
+    /**
+     * Add the pairs listed in a manifest file. Each line holds two paths,
+     * separated by a tab (or, if there's no tab, by white space); blank
+     * lines and lines beginning with # are ignored.
+     * @param manifestFile a path to the manifest.
+     */
+    void addManifest(String manifestFile)
+    throws IOException
+    {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), StandardCharsets.UTF_8));
+
+        try {
+            int lineNumber = 0;
+
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                lineNumber++;
+
+                if (line.trim().length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] paths = line.indexOf('\t') >= 0? line.split("\t"): line.trim().split("\\s+");
+
+                if (paths.length != 2) {
+                    throw new IOException(String.format("%s:%d: expected two paths", manifestFile, lineNumber));
+                }
+
+                addPair(new File(paths[0]), new File(paths[1]));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Compare all the pairs, emitting results as they're found.
+     * @param out the stream that receives the results.
+     * @return the number of pairs that differ or couldn't be
+     * compared, capped at 255 so it can be used as an exit code.
+     */
+    int run(PrintStream out)
+    throws InterruptedException
+    {
+        findSharedBaselines();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        // Keep a few pairs queued per thread, but don't
+        // hold the results of the whole batch at once.
+        LinkedList<Future<Outcome>> pending = new LinkedList<Future<Outcome>>();
+        int differing   = 0;
+        int failed      = 0;
+        long differences = 0;
+
+        try {
+            for (int next = 0; next < pairs.size() || !pending.isEmpty(); ) {
+
+                if (next < pairs.size() && pending.size() < 2 * threads) {
+                    pending.add(pool.submit(new Comparison(pairs.get(next++))));
+                    continue;
+                }
+
+                Outcome outcome = result(pending.removeFirst());
+                out.print(outcome.report);
+
+                if (outcome.failed) {
+                    failed++;
+                } else if (outcome.differences > 0) {
+                    differing++;
+                    differences += outcome.differences;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        out.printf("%d pairs compared, %d differ, %d failed, %d differences%n", pairs.size(), differing, failed, differences);
+        return Math.min(differing + failed, FilterByRegex.MAX_EXIT_CODE);
+    }
+
+    /**
+     * Find the first files that more than one pair compares.
+     */
+    private void findSharedBaselines()
+    {
+        Map<String, Integer> uses = new HashMap<String, Integer>();
+
+        for (File[] pair: pairs) {
+
+            if (pair[0] != null && pair[1] != null) {
+                Integer count = uses.get(pair[0].getPath());
+                uses.put(pair[0].getPath(), count != null? count + 1: 1);
+            }
+        }
+
+        for (Map.Entry<String, Integer> entry: uses.entrySet()) {
+
+            if (entry.getValue() > 1) {
+                baselines.put(entry.getKey(), new SharedBaseline(entry.getKey(), entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Wait for a comparison, turning an unexpected failure into an outcome.
+     */
+    private static Outcome result(Future<Outcome> comparison)
+    throws InterruptedException
+    {
+        try {
+            return comparison.get();
+        } catch (ExecutionException unexpected) {
+            return new Outcome(String.format("FilterByRegex: %s%n", unexpected.getCause()), 0, true);
+        }
+    }
+
+    /**
+     * Collect the relative paths of the files in a tree.
+     * @param dir the directory.
+     * @param prefix the directory's path relative to the root of the tree.
+     * @param relativePaths receives the paths.
+     */
+    private static void listFiles(File dir, String prefix, TreeSet<String> relativePaths)
+    {
+        File[] children = dir.listFiles();
+
+        if (children == null) {
+            return;
+        }
+
+        for (File child: children) {
+            String path = prefix + child.getName();
+
+            if (child.isDirectory()) {
+                listFiles(child, path + File.separator, relativePaths);
+            } else {
+                relativePaths.add(path);
+            }
+        }
+    }
+
+    /**
+     * An Outcome is the result of comparing one pair.
+     */
+    private static class Outcome
+    {
+        Outcome(String report, int differences, boolean failed)
+        {
+            this.report         = report;
+            this.differences    = differences;
+            this.failed         = failed;
+        }
+
+        /**
+         * The text reported for the pair; empty if the files match.
+         */
+        final String report;
+
+        /**
+         * The number of line-by-line differences.
+         */
+        final int differences;
+
+        /**
+         * True if the pair couldn't be compared.
+         */
+        final boolean failed;
+    }
+
+    /**
+     * A SharedBaseline is the index of a first file shared by several
+     * pairs. It's built by the first pair to need it, and dropped once
+     * every pair that shares it has used it.
+     */
+    private static class SharedBaseline
+    {
+        SharedBaseline(String filePath, int uses)
+        {
+            this.filePath   = filePath;
+            this.uses       = uses;
+        }
+
+        private final String filePath;
+
+        /**
+         * The number of pairs yet to use the index.
+         */
+        private int uses;
+
+        /**
+         * The index, once a pair has asked for it.
+         */
+        private FutureTask<BaselineIndex<AbstractedString>> index;
+
+        /**
+         * Get the index, building it if this is the first use.
+         * Every call must be matched by a call to release().
+         */
+        BaselineIndex<AbstractedString> get()
+        throws IOException, InterruptedException
+        {
+            FutureTask<BaselineIndex<AbstractedString>> task;
+            boolean build = false;
+
+            synchronized (this) {
+
+                if (index == null) {
+                    index = new FutureTask<BaselineIndex<AbstractedString>>(new Callable<BaselineIndex<AbstractedString>>() {
+                        public BaselineIndex<AbstractedString> call()
+                        throws IOException
+                        {
+                            List<AbstractedString> content = FilterByRegex.loadContent(filePath, AbstractedString.patterns);
+                            return new BaselineIndex<AbstractedString>(new ArrayList<AbstractedString>(content));
+                        }
+                    });
+                    build = true;
+                }
+
+                task = index;
+            }
+
+            if (build) {
+                task.run();
+            }
+
+            try {
+                return task.get();
+            } catch (ExecutionException buildFailed) {
+
+                if (buildFailed.getCause() instanceof IOException) {
+                    throw (IOException)buildFailed.getCause();
+                }
+
+                throw new IllegalStateException(buildFailed.getCause());
+            }
+        }
+
+        /**
+         * Release one use of the index.
+         */
+        synchronized void release()
+        {
+            if (--uses == 0) {
+                index = null;
+            }
+        }
+    }
+
+    /**
+     * A Comparison compares one pair of files.
+     */
+    private class Comparison implements Callable<Outcome>
+    {
+        Comparison(File[] pair)
+        {
+            this.fileA  = pair[0];
+            this.fileB  = pair[1];
+        }
+
+        private final File fileA;
+        private final File fileB;
+
+        public Outcome call()
+        {
+            if (fileA == null || fileB == null) {
+                File only = fileA != null? fileA: fileB;
+                return new Outcome(String.format("Only in %s: %s%n", only.getParent(), only.getName()), 1, false);
+            }
+
+            SharedBaseline shared = baselines.get(fileA.getPath());
+            StringWriter report = new StringWriter();
+            int differences;
+
+            try {
+                DiffEngine<AbstractedString> diff;
+
+                if (shared != null) {
+                    List<AbstractedString> sequenceB = FilterByRegex.loadContent(fileB.getPath(), AbstractedString.patterns);
+                    diff = shared.get().compareWith(sequenceB, algorithm);
+                } else {
+                    diff = FilterByRegex.prepareComparison(fileA.getPath(), fileB.getPath(), algorithm, 1);
+                }
+
+                if (quietMode) {
+                    diff.setDistanceCounter(counter);
+                    differences = diff.countDifferences(Integer.MAX_VALUE - 1);
+                    report.write(String.format("Files %s and %s differ%n", fileA, fileB));
+                } else {
+                    report.write(String.format("diff %s %s%n", fileA, fileB));
+
+                    DiffWriter out = new DiffWriter(report);
+                    differences = diff.emitRegions(out);
+                    out.flush();
+                }
+            } catch (IOException compareFailed) {
+                return new Outcome(String.format("FilterByRegex: %s%n", compareFailed), 0, true);
+            } catch (InterruptedException interrupted) {
+                return new Outcome(String.format("FilterByRegex: %s%n", interrupted), 0, true);
+            } finally {
+                if (shared != null) {
+                    shared.release();
+                }
+            }
+
+            if (differences == 0) {
+                return new Outcome("", 0, false);
+            }
+
+            return new Outcome(report.toString(), differences, false);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.util.List;
+
+/**
+ * BitParallelLcs computes the length of the longest common subsequence
+ * of two sequences without constructing an edit script, for callers
+ * that only need to know how similar two sequences are. It uses the
+ * bit-vector algorithm of Allison and Dix, in the form given by Hyyro:
+ * one row of the LCS table is encoded as a bit vector of the row's
+ * increments, and a whole row is updated with a few word-wide logical
+ * and arithmetic operations per 64 columns. That takes O(N*M/64) time
+ * and O(M/64) memory for the row, where M is the length of the shorter
+ * sequence. The most frequent elements in it, at most 64 of them, get a
+ * precomputed match vector of the same size, so the memory needed is
+ * O(M) in all.
+ * <p>
+ * As a DistanceCounter, a BitParallelLcs counts the differences
+ * of a pair of sequences from the length of their LCS.
+ */
+public class BitParallelLcs implements DistanceCounter
+{
+    /**
+     * @see DistanceCounter#countDifferences(int[], int[], int)
+     */
+    public int countDifferences(int[] sequenceA, int[] sequenceB, int limit)
+    {
+        // Every element of the longer sequence beyond the length
+        // of the shorter one must be inserted or removed.
+        if (Math.abs(sequenceA.length - sequenceB.length) > limit) {
+            return limit + 1;
+        }
+
+        long distance = (long)sequenceA.length + sequenceB.length - 2L * lcsLength(sequenceA, sequenceB);
+        return (int)Math.min(distance, (long)limit + 1);
+    }
+
+    /**
+     * Elements that occur at least this many times in the shorter
+     * sequence get a precomputed match vector; it's cheaper to set
+     * and clear the bits of rarer elements as needed.
+     */
+    private static final int FREQUENT = 64;
+
+    /**
+     * No more than this many elements get a precomputed match vector.
+     */
+    private static final int MAX_FREQUENT_VECTORS = 64;
+
+    /**
+     * Compute the length of the longest common subsequence of two sequences.
+     * @param sequenceA the first sequence.
+     * @param sequenceB the second sequence.
+     * @return the length of the LCS.
+     */
+    public static <T> int lcsLength(List<T> sequenceA, List<T> sequenceB)
+    {
+        TokenTable<T> tokens = new TokenTable<T>();
+        return lcsLength(tokens.intern(sequenceA), tokens.intern(sequenceB));
+    }
+
+    /**
+     * Compute the number of elements that must be removed or inserted
+     * to transform one sequence into another; this is the number of
+     * Differences an LcsDiff would produce.
+     * @param sequenceA the first sequence.
+     * @param sequenceB the second sequence.
+     * @return the edit distance.
+     */
+    public static <T> int editDistance(List<T> sequenceA, List<T> sequenceB)
+    {
+        return sequenceA.size() + sequenceB.size() - 2 * lcsLength(sequenceA, sequenceB);
+    }
+
+    /**
+     * Compute the similarity of two sequences: twice the length of
+     * their LCS, divided by their total length.
+     * @param sequenceA the first sequence.
+     * @param sequenceB the second sequence.
+     * @return a similarity ratio between 0 (nothing in common)
+     * and 1 (identical); two empty sequences are identical.
+     */
+    public static <T> double similarity(List<T> sequenceA, List<T> sequenceB)
+    {
+        int total = sequenceA.size() + sequenceB.size();
+        return total > 0? 2.0 * lcsLength(sequenceA, sequenceB) / total: 1.0;
+    }
+
+    /**
+     * Compute the length of the longest common subsequence of two
+     * sequences of token ids, as assigned by a TokenTable.
+     * @param sequenceA the first sequence of ids.
+     * @param sequenceB the second sequence of ids.
+     * @return the length of the LCS.
+     */
+    public static int lcsLength(int[] sequenceA, int[] sequenceB)
+    {
+        // Common heads and tails are part of the LCS; skip them.
+        int endA = sequenceA.length;
+        int endB = sequenceB.length;
+        int prefix = 0;
+
+        while (prefix < endA && prefix < endB && sequenceA[prefix] == sequenceB[prefix]) {
+            prefix++;
+        }
+
+        int suffix = 0;
+
+        while (endA > prefix && endB > prefix && sequenceA[endA-1] == sequenceB[endB-1]) {
+            endA--;
+            endB--;
+            suffix++;
+        }
+
+        // The bit vectors run across the shorter sequence.
+        if (endA - prefix < endB - prefix) {
+            return prefix + suffix + lcsLength(sequenceB, prefix, endB, sequenceA, prefix, endA);
+        } else {
+            return prefix + suffix + lcsLength(sequenceA, prefix, endA, sequenceB, prefix, endB);
+        }
+    }
+
+    /**
+     * Compute the length of the LCS of rows[fromRow..toRow)
+     * and columns[fromColumn..toColumn).
+     */
+    private static int lcsLength(int[] rows, int fromRow, int toRow, int[] columns, int fromColumn, int toColumn)
+    {
+        int width = toColumn - fromColumn;
+
+        if (width == 0 || toRow == fromRow) {
+            return 0;
+        }
+
+        int words = (width + 63) >>> 6;
+
+        // Index the columns' positions by token: positions[start[t]..start[t+1])
+        // are the columns holding token t.
+        int tokens = 0;
+
+        for (int j = fromColumn; j < toColumn; j++) {
+            tokens = Math.max(tokens, columns[j]+1);
+        }
+
+        int[] start = new int[tokens+1];
+
+        for (int j = fromColumn; j < toColumn; j++) {
+            start[columns[j]+1]++;
+        }
+        for (int t = 0; t < tokens; t++) {
+            start[t+1] += start[t];
+        }
+
+        int[] positions = new int[width];
+        int[] fill = new int[tokens];
+
+        for (int j = fromColumn; j < toColumn; j++) {
+            int t = columns[j];
+            positions[start[t] + fill[t]++] = j - fromColumn;
+        }
+
+        // Precompute the match vectors of frequent tokens. Fewer than
+        // MAX_FREQUENT_VECTORS tokens can each fill more than 1/MAX_FREQUENT_VECTORS
+        // of the columns, which bounds the vectors' memory to O(width).
+        long[][] frequent = new long[tokens][];
+        int threshold = Math.max(FREQUENT, (width + MAX_FREQUENT_VECTORS - 1) / MAX_FREQUENT_VECTORS + 1);
+
+        for (int t = 0; t < tokens; t++) {
+
+            if (start[t+1] - start[t] >= threshold) {
+                frequent[t] = new long[words];
+
+                for (int p = start[t]; p < start[t+1]; p++) {
+                    frequent[t][positions[p] >>> 6] |= 1L << positions[p];
+                }
+            }
+        }
+
+        // Bit j of the row vector is 0 where the LCS row increases
+        // at column j; initially, nothing has been matched.
+        long[] row = new long[words];
+        long[] scratch = new long[words];
+
+        for (int w = 0; w < words; w++) {
+            row[w] = ~0L;
+        }
+
+        for (int i = fromRow; i < toRow; i++) {
+
+            int t = rows[i];
+
+            if (t < 0 || t >= tokens || start[t] == start[t+1]) {
+                // No column matches, so the row is unchanged.
+                continue;
+            }
+
+            long[] match = frequent[t];
+
+            if (match == null) {
+                match = scratch;
+
+                for (int p = start[t]; p < start[t+1]; p++) {
+                    match[positions[p] >>> 6] |= 1L << positions[p];
+                }
+            }
+
+            // row' = (row + (row & match)) | (row & ~match),
+            // with the addition carried across words.
+            long carry = 0;
+
+            for (int w = 0; w < words; w++) {
+                long v = row[w];
+                long u = v & match[w];
+                long sum = v + u;
+                long carryOut = Long.compareUnsigned(sum, v) < 0? 1: 0;
+                long total = sum + carry;
+
+                if (Long.compareUnsigned(total, sum) < 0) {
+                    carryOut = 1;
+                }
+
+                row[w] = total | (v & ~match[w]);
+                carry = carryOut;
+            }
+
+            if (match == scratch) {
+
+                for (int p = start[t]; p < start[t+1]; p++) {
+                    scratch[positions[p] >>> 6] = 0;
+                }
+            }
+        }
+
+        // The LCS is the number of increments, i.e., zero bits, in the last row.
+        int length = 0;
+
+        for (int w = 0; w < words; w++) {
+            long zeros = ~row[w];
+
+            if (w == words - 1 && (width & 63) != 0) {
+                zeros &= (1L << (width & 63)) - 1;
+            }
+
+            length += Long.bitCount(zeros);
+        }
+
+        return length;
+    }
+}
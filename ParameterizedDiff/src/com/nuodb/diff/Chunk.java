@@ -28,6 +28,9 @@
 
 package com.nuodb.diff;
 
+import java.io.IOException;
+import java.io.Writer;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -64,6 +67,22 @@ public class Chunk implements Coalescible
      */
     private int    positionB;
 
+    /**
+     * @return the position in "Source A" where the change was detected.
+     */
+    int getPositionA()
+    {
+        return positionA;
+    }
+
+    /**
+     * @return the position in "Source B" where the change was detected.
+     */
+    int getPositionB()
+    {
+        return positionB;
+    }
+
     /**
      * Lines "removed," i.e., present in Source A but not in the LCS.
      */
@@ -87,66 +106,120 @@ public class Chunk implements Coalescible
         }
     }
 
+    /**
+     * @see DiffRegion#getStartA()
+     */
+    public int getStartA()
+    {
+        return contentR.size() > 0? positionA - 1: positionA;
+    }
+
+    /**
+     * @see DiffRegion#getCountA()
+     */
+    public int getCountA()
+    {
+        return contentR.size();
+    }
+
+    /**
+     * @see DiffRegion#getStartB()
+     */
+    public int getStartB()
+    {
+        return contentA.size() > 0? positionB - 1: positionB;
+    }
+
+    /**
+     * @see DiffRegion#getCountB()
+     */
+    public int getCountB()
+    {
+        return contentA.size();
+    }
+
+    /**
+     * @see DiffRegion#getRemoved(int)
+     */
+    public Object getRemoved(int k)
+    {
+        return contentR.get(k);
+    }
+
+    /**
+     * @see DiffRegion#getInserted(int)
+     */
+    public Object getInserted(int k)
+    {
+        return contentA.get(k);
+    }
+
     /**
      * Emit this chunk in diff format.
      */
     public String toString()
+    {
+        return DiffWriter.format(this);
+    }
+
+    /**
+     * @see DiffRegion#writeTo(Writer)
+     */
+    public void writeTo(Writer out)
+    throws IOException
     {
         if (contentR.size() > 0 && contentA.size() > 0) {
-            return String.format(
-                "%sc%s%s\n---%s",
-                emitContentHeader(positionA, contentR), 
-                emitContentHeader(positionB, contentA),
-                emitContent(contentR, Difference.EditType.Remove),
-                emitContent(contentA, Difference.EditType.Insert)
-            );
+            emitContentHeader(out, positionA, contentR);
+            out.write('c');
+            emitContentHeader(out, positionB, contentA);
+            emitContent(out, contentR, Difference.EditType.Remove);
+            out.write("\n---");
+            emitContent(out, contentA, Difference.EditType.Insert);
         } else if (contentR.size() > 0) {
-            return String.format(
-                "%sd%d%s",
-                emitContentHeader(positionA, contentR),
-                positionB,
-                emitContent(contentR, Difference.EditType.Remove)
-            );
+            emitContentHeader(out, positionA, contentR);
+            out.write('d');
+            out.write(Integer.toString(positionB));
+            emitContent(out, contentR, Difference.EditType.Remove);
         } else {
-            return String.format(
-                "%da%s%s",
-                positionA,
-                emitContentHeader(positionB, contentA),
-                emitContent(contentA, Difference.EditType.Insert)
-            );
+            out.write(Integer.toString(positionA));
+            out.write('a');
+            emitContentHeader(out, positionB, contentA);
+            emitContent(out, contentA, Difference.EditType.Insert);
         }
     }
 
     /**
-     * Emit the diff-format header of a list of content.
-     * @return the header of the content, as a tuple in
-     * diff format -- the trailing member of the pair is
-     * elided if the size is one.
+     * Emit the diff-format header of a list of content:
+     * the range of the content, as a tuple in diff format
+     * -- the trailing member of the pair is elided if the
+     * size is one.
      */
-    private String emitContentHeader(int start, List<Object> content)
+    private void emitContentHeader(Writer out, int start, List<Object> content)
+    throws IOException
     {
         assert(content.size() > 0);
-        return content.size() > 1?
-            String.format("%d,%d", start, start+content.size()-1):
-            Integer.toString(start);
+        out.write(Integer.toString(start));
+
+        if (content.size() > 1) {
+            out.write(',');
+            out.write(Integer.toString(start+content.size()-1));
+        }
     }
 
     /**
-     * Stringify a list of added/deleted lines in diff format.
+     * Emit a list of added/deleted lines in diff format.
      * @param content the added or deleted lines.
      * @param type the content's type.
      */
-    private Object emitContent(List<Object> content, Difference.EditType type)
+    private void emitContent(Writer out, List<Object> content, Difference.EditType type)
+    throws IOException
     {
-        StringBuilder result = new StringBuilder();
         for (Object o: content) {
-            result.append("\n");
-            result.append(type.getIndicator());
-            result.append(" ");
-            result.append(o);
+            out.write('\n');
+            out.write(type.getIndicator());
+            out.write(' ');
+            out.write(String.valueOf(o));
         }
-
-        return result;
     }
 
     /**
@@ -31,7 +31,7 @@ package com.nuodb.diff;
  * Coalescible defines the contract used to coalesce
  * element-by-element differences into larger regions.
  */
-public interface Coalescible
+public interface Coalescible extends DiffRegion
 {
     /**
      * Can this instance be coalesced with the next Difference?
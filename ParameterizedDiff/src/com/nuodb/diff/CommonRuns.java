@@ -0,0 +1,96 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.util.Arrays;
+
+/**
+ * A CommonRuns accumulates the elements common to both sequences
+ * as a backtracking engine discovers them, back to front, and
+ * replays the gaps between them as changed regions, front to back.
+ * Matches are stored as diagonal runs, so a pair of nearly identical
+ * sequences needs only a handful of entries.
+ */
+class CommonRuns
+{
+    /**
+     * Run starts in sequence A and sequence B, and run lengths,
+     * in back-to-front order.
+     */
+    private int[] startA = new int[16];
+    private int[] startB = new int[16];
+    private int[] length = new int[16];
+    private int   count  = 0;
+
+    /**
+     * Record a common element; elements must be recorded back to front.
+     * @param i the element's zero-based position in sequence A.
+     * @param j the element's zero-based position in sequence B.
+     */
+    void addMatch(int i, int j)
+    {
+        if (count > 0 && startA[count-1] == i+1 && startB[count-1] == j+1) {
+            // This match extends the current run backwards.
+            startA[count-1] = i;
+            startB[count-1] = j;
+            length[count-1]++;
+        } else {
+
+            if (count == length.length) {
+                startA = Arrays.copyOf(startA, count * 2);
+                startB = Arrays.copyOf(startB, count * 2);
+                length = Arrays.copyOf(length, count * 2);
+            }
+
+            startA[count] = i;
+            startB[count] = j;
+            length[count] = 1;
+            count++;
+        }
+    }
+
+    /**
+     * Report the gaps between common runs to a ChangeSink.
+     * @param sizeA the size of sequence A.
+     * @param sizeB the size of sequence B.
+     * @param changes the sink that receives the changed regions.
+     */
+    void replay(int sizeA, int sizeB, ChangeSink changes)
+    {
+        int i = 0;
+        int j = 0;
+
+        for (int run = count - 1; run >= 0; run--) {
+            changes.addChange(i, startA[run], j, startB[run]);
+            i = startA[run] + length[run];
+            j = startB[run] + length[run];
+        }
+
+        changes.addChange(i, sizeA, j, sizeB);
+    }
+}
@@ -28,128 +28,338 @@
 
 package com.nuodb.diff;
 
+import java.io.IOException;
+
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
+import java.util.concurrent.ForkJoinPool;
+
 /**
- * A DiffEngine computes a longest common subsequence matrix
- * for two sequences of elements, and backtracks through that
- * matrix to construct a List of edit operations to transform
- * sequenceA into sequenceB.
+ * A DiffEngine constructs a List of edit operations to transform
+ * sequenceA into sequenceB. The comparison itself is delegated
+ * to a DiffAlgorithm; by default, this is an LcsDiff, which
+ * computes a longest common subsequence matrix for the two
+ * sequences and backtracks through that matrix. Elements common
+ * to the heads and tails of both sequences are matched before
+ * the algorithm runs, so it only sees the window that changed.
+ * <p>
+ * Before they are compared, the elements of both sequences are
+ * interned to integer ids by a TokenTable. Elements are matched by
+ * compareTo(), as they always have been; but that's only fast for
+ * elements that can be hashed instead: Strings, boxed primitives,
+ * and classes that implement ConsistentWithEquals, promising that
+ * their equals() and hashCode() agree with compareTo(). Other
+ * elements are interned through a TreeMap, in O(log N) comparisons
+ * each.
  */
 public class DiffEngine<T extends Comparable<T>>
 {
     /**
-     * Construct the LCS table for two sequences.
+     * Prepare to compare two sequences using the default algorithm.
      * @param sequenceA the first sequence.
      * @param sequenceB the second sequence.
      */
     public DiffEngine(List<T> sequenceA, List<T> sequenceB)
+    {
+        this(sequenceA, sequenceB, new LcsDiff());
+    }
+
+    /**
+     * Prepare to compare two sequences.
+     * @param sequenceA the first sequence.
+     * @param sequenceB the second sequence.
+     * @param algorithm the algorithm that compares them.
+     */
+    public DiffEngine(List<T> sequenceA, List<T> sequenceB, DiffAlgorithm algorithm)
+    {
+        this(sequenceA, sequenceB, algorithm, null, null);
+    }
+
+    /**
+     * Prepare to compare two sequences, the first of which has
+     * already been interned; see BaselineIndex.
+     * @param sequenceA the first sequence.
+     * @param sequenceB the second sequence.
+     * @param algorithm the algorithm that compares them.
+     * @param tokensA the table that interned the first sequence, or null.
+     * @param idsA the ids of the first sequence, or null.
+     */
+    DiffEngine(List<T> sequenceA, List<T> sequenceB, DiffAlgorithm algorithm, TokenTable<T> tokensA, int[] idsA)
     {
         this.sequenceA  = sequenceA;
         this.sequenceB  = sequenceB;
-        computeLcs();
+        this.tokensA    = tokensA;
+        this.idsA       = idsA;
+
+        this.comparison = new InternedComparison(sequenceA, sequenceB, algorithm) {
+            protected int[][] intern()
+            {
+                return DiffEngine.this.intern();
+            }
+
+            protected boolean isIdentical()
+            {
+                return DiffEngine.this.isIdentical();
+            }
+        };
     }
 
     private final List<T> sequenceA;
     private final List<T> sequenceB;
 
     /**
-     * The longest common subsequence of the two sequences,
-     * encoded as a matrix of longest common subsequences
-     * of prefixes to the two sequences.
+     * The table that interned sequence A, and the ids
+     * it assigned, if A was interned in advance.
+     */
+    private final TokenTable<T> tokensA;
+    private final int[] idsA;
+
+    /**
+     * The comparison of the interned sequences, which
+     * keeps the edit script once it's computed.
      */
-    private int[][] lcs;
+    private final InternedComparison comparison;
 
     /**
-     * Compute the longest common subsequence of the two sequences
-     * by computing the longest common subsequences of the prefixes
-     * a[1..i],b[1..j] for 0 &lt; 1 &lt; size(a), 0 &lt; j &lt; size(b).
-     * Note that the algorithm uses one-based addressing.
+     * Compute the edit script that will transform sequence A to
+     * sequence B. This is the compact form of getDifferences(): one
+     * run per changed range, rather than one object per element.
+     * @return the edit script.
      */
-    private void computeLcs()
+    public EditScript getEditScript()
     {
-        // The 0th row and column are the initial conditions,
-        // which are are initialized to 0 by side effect.
-        lcs = new int[sequenceA.size()+1][sequenceB.size()+1];
+        return comparison.getEditScript();
+    }
 
-        for (int i = 0; i < sequenceA.size(); i++) {
+    /**
+     * Generate a sequence of edit operations that will transform
+     * sequence A to sequence B. Note that the results generated
+     * are not necessarily the only valid sequence, and different
+     * algorithms may generate different valid sequences.
+     * @return a list of element-by-element differences.
+     */
+    public List<Difference> getDifferences()
+    {
+        return comparison.getDifferences();
+    }
 
-            for (int j = 0; j < sequenceB.size(); j++) {
+    /**
+     * Generate the edit operations that will transform sequence A
+     * to sequence B, coalesced into regions, and pass each region
+     * to a sink. Unlike getDifferences(), this doesn't generate a
+     * Difference per element: the regions are EditScript.Regions,
+     * views over the edit script and the sequences. If the edit script
+     * hasn't been computed yet, each region is passed on as soon as the
+     * algorithm reports it, while the comparison is still backtracing.
+     * @param regions the sink that receives the regions, front to back.
+     * @return the number of element-by-element differences.
+     * @throws IOException if the sink fails.
+     */
+    public int emitRegions(RegionSink regions)
+    throws IOException
+    {
+        return comparison.emitRegions(regions);
+    }
 
-                if (sequenceA.get(i).compareTo(sequenceB.get(j)) == 0) {
-                    // The subsequence extends to the ith and jth 
-                    // positions of the respective strings.
-                    lcs[i+1][j+1] = lcs[i][j] + 1;
-                } else {
-                    // The longest subsequence at the ith and jth
-                    // positions is the longest of the two subsequences
-                    // of the prefixes sequenceA[1..i-1], sequenceB[1..j-1].
-                    lcs[i+1][j+1] = Math.max(lcs[i][j+1], lcs[i+1][j]);
+    /**
+     * Count the element-by-element differences without generating
+     * them, giving up as soon as there are known to be more than a
+     * limit. Identical sequences are recognized by comparing their
+     * lengths and elements, without interning them;
+     * otherwise, if the algorithm finds minimal edit scripts, the
+     * count is found by the DistanceCounter, by default a MyersDiff,
+     * which runs in linear space and stops early once the limit is
+     * passed. For other algorithms, the differences are generated
+     * and counted.
+     * @param limit the largest count of interest.
+     * @return the number of differences, or limit+1 if there are more than limit.
+     */
+    public int countDifferences(int limit)
+    {
+        return comparison.countDifferences(limit);
+    }
+
+    /**
+     * Choose how countDifferences() counts the differences when the
+     * algorithm finds minimal edit scripts; see getDistanceCounter().
+     * @param counter the counter, such as a MyersDiff or a BitParallelLcs.
+     */
+    public void setDistanceCounter(DistanceCounter counter)
+    {
+        comparison.setDistanceCounter(counter);
+    }
+
+    /**
+     * Are two sequences of the same length identical? Elements
+     * are matched as a TokenTable would match them.
+     */
+    private boolean isIdentical()
+    {
+        Iterator<T> a = sequenceA.iterator();
+        Iterator<T> b = sequenceB.iterator();
+
+        while (a.hasNext()) {
+            T elementA = a.next();
+            T elementB = b.next();
+
+            if (!TokenTable.isConsistentWithEquals(elementA)) {
+                if (elementA.compareTo(elementB) != 0) {
+                    return false;
                 }
+            } else if (elementA.hashCode() != elementB.hashCode() || !elementA.equals(elementB)) {
+                return false;
             }
         }
+
+        return true;
     }
 
     /**
-     * Backtrace the LCS matrix and generate a sequence of edit operations
-     * that will transform sequence A to sequence B. Note that the results
-     * generated by this algorithm are not necessarily the only valid sequence.
-     * @return a list of element-by-element differences.
+     * Does an algorithm always find a minimal edit script, so that
+     * the number of differences is the same as the edit distance?
      */
-    public List<Difference> getDifferences()
+    static boolean isMinimal(DiffAlgorithm algorithm)
     {
-        List<Difference> differences = new ArrayList<Difference>();
+        return algorithm instanceof LcsDiff || algorithm instanceof MyersDiff || algorithm instanceof HirschbergDiff;
+    }
 
-        // Process the two sequences back-to-front to operate on
-        // progressive prefixes.
-        int i = sequenceA.size();
-        int j = sequenceB.size();
+    /**
+     * Map each distinct element to an integer id, once; from
+     * then on, elements are compared by id. If sequence A was
+     * interned in advance, only sequence B is interned here.
+     * @return the ids of sequence A and of sequence B.
+     */
+    private int[][] intern()
+    {
+        long start = DiffStatistics.start();
+        int[][] ids = new int[2][];
 
-        while (i > 0 || j > 0) {
+        if (idsA != null) {
+            ids[0] = idsA;
+            ids[1] = new TokenTable<T>(tokensA).intern(sequenceB);
+        } else {
+            TokenTable<T> tokens = new TokenTable<T>();
+            ids[0] = tokens.intern(sequenceA);
+            ids[1] = tokens.intern(sequenceB);
+        }
 
-            if (i > 0 && j > 0 && sequenceA.get(i-1).compareTo(sequenceB.get(j-1)) == 0) {
+        DiffStatistics.stop(DiffStatistics.Phase.Intern, start);
+        return ids;
+    }
 
-                // This element is common to both sequences, no editing required.
-                i--;
-                j--;
+    /**
+     * Compare two sequences of ids, reporting the changes to a sink.
+     * @param idsA the ids of the first sequence.
+     * @param idsB the ids of the second sequence.
+     * @param algorithm the algorithm that compares them.
+     * @param changes the sink that receives the changed regions.
+     */
+    static void computeChanges(int[] idsA, int[] idsB, DiffAlgorithm algorithm, ChangeSink changes)
+    {
+        // Strip the common prefix and suffix with simple equality
+        // checks; the algorithm only needs to see what is left.
+        int endA = idsA.length;
+        int endB = idsB.length;
+        int prefix = 0;
 
-            } else if (j > 0 && (i == 0 || lcs[i][j-1] >= lcs[i-1][j])) {
+        while (prefix < endA && prefix < endB && idsA[prefix] == idsB[prefix]) {
+            prefix++;
+        }
 
-                // This element is not common to both prefixes a[1..i],b[1..j],
-                // so we have to edit it and continue searching prefixes
-                // a[1..i],b[1..j-1] or a[1..i-1],b[1..j].  The LCS of a[1..i],b[1..j-1]
-                // is at least as long as the LCS of the prefixes a[1..i-1],b[1..j],
-                // so continuing with prefixes a[1..i],b[1..j-1] is valid;
-                // this would remove the element from sequence b, but by convention
-                // we're emitting edits to change sequence a to sequence b, 
-                // so the edit operation generated is an insert.
-                differences.add(new Difference(i,j, Difference.EditType.Insert, sequenceB.get(j-1)));
-                j--;
+        while (endA > prefix && endB > prefix && idsA[endA-1] == idsB[endB-1]) {
+            endA--;
+            endB--;
+        }
 
-            } else {
+        if (prefix < endA || prefix < endB) {
+            long start = DiffStatistics.start();
+            algorithm.computeChanges(
+                Arrays.copyOfRange(idsA, prefix, endA),
+                Arrays.copyOfRange(idsB, prefix, endB),
+                new RebasingChangeSink(changes, prefix, prefix)
+            );
+            DiffStatistics.stop(DiffStatistics.Phase.Compute, start);
+        }
+    }
 
-                // This condition is known to hold, because:
-                // - At least one of i and j is > 0.
-                // - If i were 0, then j must be > 0 and the branch above would be taken.
-                //   Therefore, i is > 0.
-                // - If j is not zero, and since we know i is not zero: lcs[i][j-1] >= lcs[i-1][j]
-                //   must be false or the branch above would be taken.
-                //   Its inverse, lcs[i][j-1] < lcs[i-1][j], is therefore true.
-                // - Therefore, either j is zero or lcs[i][j-1] < lcs[i-1][j]) is true.
-                assert (i > 0 && (j == 0 || lcs[i][j-1] < lcs[i-1][j]));
+    /**
+     * Look up a DiffAlgorithm by name.
+     * @param name the algorithm's name: "lcs", "myers", "hirschberg", "patience", or "anchored".
+     * @return a new instance of the named algorithm.
+     * @throws IllegalArgumentException if the name is not recognized.
+     */
+    public static DiffAlgorithm getAlgorithm(String name)
+    {
+        return getAlgorithm(name, LcsDiff.DEFAULT_TABLE_BUDGET);
+    }
 
-                differences.add(new Difference(i,j, Difference.EditType.Remove, sequenceA.get(i-1)));
-                i--;
-            }
-        }
+    /**
+     * Look up a DiffAlgorithm by name.
+     * @param name the algorithm's name: "lcs", "myers", "hirschberg", "patience", or "anchored".
+     * @param tableBudget the maximum size, in bytes, of an LCS table,
+     * or of the trace of a MyersDiff.
+     * @return a new instance of the named algorithm.
+     * @throws IllegalArgumentException if the name is not recognized.
+     */
+    public static DiffAlgorithm getAlgorithm(String name, long tableBudget)
+    {
+        return getAlgorithm(name, tableBudget, 0);
+    }
 
-        // Backtracing generates the list from back to front,
-        // so reverse it to get front-to-back.
-        Collections.reverse(differences);
+    /**
+     * Look up a DiffAlgorithm by name, overriding the size at which it
+     * switches to its strategy for large comparisons: "lcs" fills tables
+     * of at least that many cells in parallel, "patience" anchors gaps
+     * larger than that on rare elements, and "anchored" splits
+     * comparisons of at least that many LCS table cells at anchors.
+     * @param name the algorithm's name: "lcs", "myers", "hirschberg", "patience", or "anchored".
+     * @param tableBudget the maximum size, in bytes, of an LCS table,
+     * or of the trace of a MyersDiff.
+     * @param threshold the number of LCS table cells at which the algorithm
+     * switches strategy, or 0 for the algorithm's default.
+     * @return a new instance of the named algorithm.
+     * @throws IllegalArgumentException if the name is not recognized.
+     */
+    public static DiffAlgorithm getAlgorithm(String name, long tableBudget, long threshold)
+    {
+        if (name.equals("lcs")) {
+            return new LcsDiff(tableBudget, threshold > 0? threshold: LcsDiff.DEFAULT_PARALLEL_THRESHOLD);
+        } else if (name.equals("myers")) {
+            return new MyersDiff(tableBudget);
+        } else if (name.equals("hirschberg")) {
+            return new HirschbergDiff();
+        } else if (name.equals("patience")) {
+            return new PatienceDiff(new LcsDiff(tableBudget), threshold > 0? threshold: PatienceDiff.DEFAULT_SMALL_GAP_CELLS);
+        } else if (name.equals("anchored")) {
+            return new AnchoredDiff(
+                new LcsDiff(tableBudget),
+                ForkJoinPool.commonPool(),
+                AnchoredDiff.DEFAULT_BLOCK_SIZE,
+                threshold > 0? threshold: AnchoredDiff.DEFAULT_SPLIT_THRESHOLD
+            );
+        } else {
+            throw new IllegalArgumentException("Unknown diff algorithm: " + name);
+        }
+    }
 
-        return differences;
+    /**
+     * Look up a DistanceCounter by name.
+     * @param name the counter's name: "myers" or "bitparallel".
+     * @return a new instance of the named counter.
+     * @throws IllegalArgumentException if the name is not recognized.
+     */
+    public static DistanceCounter getDistanceCounter(String name)
+    {
+        if (name.equals("myers")) {
+            return new MyersDiff();
+        } else if (name.equals("bitparallel")) {
+            return new BitParallelLcs();
+        } else {
+            throw new IllegalArgumentException("Unknown distance counter: " + name);
+        }
     }
 
     /**
@@ -159,6 +369,7 @@ public class DiffEngine<T extends Comparable<T>>
      */
     public static List<Object> coalesceRegions(List<Difference> diffs)
     {
+        long start = DiffStatistics.start();
         List<Object> result = new ArrayList<Object>();
 
         if (diffs.size() > 0) {
@@ -182,6 +393,19 @@ public class DiffEngine<T extends Comparable<T>>
             result.add(previous);
         }
 
+        if (DiffStatistics.isGathering()) {
+            int chunks = 0;
+
+            for (Object region: result) {
+                if (region instanceof Chunk) {
+                    chunks++;
+                }
+            }
+
+            DiffStatistics.count(DiffStatistics.Counter.Chunks, chunks);
+            DiffStatistics.stop(DiffStatistics.Phase.Coalesce, start);
+        }
+
         return result;
     }
     
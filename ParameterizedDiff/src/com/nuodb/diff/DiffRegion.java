@@ -0,0 +1,83 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A DiffRegion is a region of differences that can be written in
+ * diff format: a single Difference, a Chunk of them, or a Region
+ * of an EditScript. Whatever its form, a region replaces countA
+ * elements of sequence A, from startA, with countB elements of
+ * sequence B, from startB; the positions are zero-based, unlike
+ * those of diff format.
+ *
+ * @see DiffWriter#format(DiffRegion)
+ */
+public interface DiffRegion
+{
+    /**
+     * @return the zero-based position in sequence A of the region.
+     */
+    public int getStartA();
+
+    /**
+     * @return the number of elements of sequence A removed.
+     */
+    public int getCountA();
+
+    /**
+     * @return the zero-based position in sequence B of the region.
+     */
+    public int getStartB();
+
+    /**
+     * @return the number of elements of sequence B inserted.
+     */
+    public int getCountB();
+
+    /**
+     * @param k an index, from 0 to getCountA()-1.
+     * @return the k'th element removed.
+     */
+    public Object getRemoved(int k);
+
+    /**
+     * @param k an index, from 0 to getCountB()-1.
+     * @return the k'th element inserted.
+     */
+    public Object getInserted(int k);
+
+    /**
+     * Write this instance in diff format, without a trailing newline.
+     * @param out the destination.
+     */
+    public void writeTo(Writer out)
+    throws IOException;
+}
@@ -0,0 +1,493 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.io.*;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import java.util.regex.PatternSyntaxException;
+
+import com.nuodb.diff.FilterByRegex.AbstractedString;
+
+/**
+ * A DiffServer is a long-running FilterByRegex that compares files on
+ * request, so callers don't pay for a JVM start, a pattern compile and
+ * a cold JIT on every comparison. It listens on a loopback port; each
+ * connection has a thread that reads its requests, and each request is
+ * compared on a pool of threads, so an idle or slow client holds none
+ * of them. A connection that sends nothing for READ_TIMEOUT_MILLIS is
+ * closed.
+ * <p>
+ * Any local user can connect to a loopback port, and a request names
+ * files for the server to read, so each connection must first send a
+ * line holding a token: a random secret the server writes, when it
+ * starts, to a token file that only its owner can read.
+ * <p>
+ * A request is a single line holding the command-line arguments of
+ * FilterByRegex, separated by tabs:
+ * <pre>
+ *     fileA TAB fileB [TAB -p TAB patternFile] [TAB -a TAB algorithm] [TAB -m TAB tableMegabytes] [TAB -q]
+ * </pre>
+ * The response is the coalesced differences (unless -q was given),
+ * followed by a line "status N", where N is the exit code FilterByRegex
+ * would have returned. A request that fails is answered with an
+ * "error message" line before its status. A connection may send any
+ * number of requests. A connection whose first line isn't the token is
+ * answered with an "error" line and closed.
+ * <p>
+ * Compiled pattern files are cached, as are BaselineIndexes of the
+ * abstracted contents of recently used first (expected) files, which
+ * are typically the same baselines over and over. Cache entries are keyed by the file's
+ * path, size, modification time and identity, so an edited file is reloaded.
+ */
+class DiffServer
+{
+    /**
+     * @param port the loopback port to listen on; zero picks a free port.
+     * @param tokenFile the file the token is written to; it's replaced.
+     * @param threads the number of requests served at once.
+     * @param tableBudget the largest LCS table to allocate, in bytes.
+     * @param cacheLines the size of each pattern set's abstract cache.
+     */
+    DiffServer(int port, File tokenFile, int threads, long tableBudget, int cacheLines)
+    {
+        this.port           = port;
+        this.tokenFile      = tokenFile;
+        this.threads        = Math.max(1, threads);
+        this.tableBudget    = tableBudget;
+        this.cacheLines     = cacheLines;
+    }
+
+    private final int port;
+    private final File tokenFile;
+    private final int threads;
+    private final long tableBudget;
+    private final int cacheLines;
+
+    /**
+     * Compiled pattern files, by file key.
+     */
+    private final Memo<PatternSet> patternSets = new Memo<PatternSet>(MAX_PATTERN_SETS);
+
+    /**
+     * Indexes of abstracted baseline files, by pattern file key and file key.
+     */
+    private final Memo<BaselineIndex<AbstractedString>> baselines = new Memo<BaselineIndex<AbstractedString>>(MAX_BASELINES);
+
+    /**
+     * The pool that abstracts baselines.
+     */
+    private final ForkJoinPool abstractionPool = new ForkJoinPool();
+
+    /**
+     * The token a connection must send before its requests.
+     */
+    private byte[] token;
+
+    /**
+     * The number of compiled pattern files kept.
+     */
+    static final int MAX_PATTERN_SETS = 64;
+
+    /**
+     * The number of abstracted baselines kept.
+     */
+    static final int MAX_BASELINES = 16;
+
+    /**
+     * How long a connection may wait between requests before it's closed.
+     */
+    static final int READ_TIMEOUT_MILLIS = 60 * 1000;
+
+    /**
+     * The number of random bytes in a token.
+     */
+    static final int TOKEN_BYTES = 32;
+
+    /**
+     * Serve requests until the process is killed.
+     */
+    void run()
+    throws IOException
+    {
+        token = writeToken(tokenFile);
+
+        ServerSocket listener = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        System.err.printf("Listening on %s:%d, token in %s%n", listener.getInetAddress().getHostAddress(), listener.getLocalPort(), tokenFile);
+
+        try {
+            while (true) {
+                final Socket connection = listener.accept();
+                connection.setSoTimeout(READ_TIMEOUT_MILLIS);
+
+                Thread reader = new Thread(new Runnable() {
+                    public void run() { serve(connection, pool); }
+                }, "DiffServer connection");
+
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } finally {
+            pool.shutdownNow();
+            listener.close();
+        }
+    }
+
+    /**
+     * Write a new random token to a file that only its owner
+     * can read or write, replacing any file already there.
+     * @param tokenFile the file.
+     * @return the token.
+     */
+    private static byte[] writeToken(File tokenFile)
+    throws IOException
+    {
+        byte[] secret = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(secret);
+
+        StringBuilder hex = new StringBuilder();
+
+        for (byte b: secret) {
+            hex.append(String.format("%02x", b));
+        }
+
+        // Create the file with its permissions, rather than restrict
+        // them afterwards, so there's no moment when others can read it.
+        Files.deleteIfExists(tokenFile.toPath());
+        Files.createFile(tokenFile.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        Files.write(tokenFile.toPath(), (hex + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+
+        return hex.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serve the requests on one connection, comparing each on the pool.
+     * The response to a request is buffered, and written by the
+     * connection's thread, so a client that's slow to read its
+     * responses doesn't hold a pool thread.
+     * @param connection the connection.
+     * @param pool the pool that compares the files.
+     */
+    private void serve(Socket connection, ExecutorService pool)
+    {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8));
+            String first = in.readLine();
+
+            if (first == null || !MessageDigest.isEqual(first.trim().getBytes(StandardCharsets.UTF_8), token)) {
+                error(out, 1, "The connection must begin with the token from %s.", tokenFile);
+                out.flush();
+                return;
+            }
+
+            for (String request = in.readLine(); request != null; request = in.readLine()) {
+                final String[] argv = request.split("\t");
+                final StringWriter response = new StringWriter();
+
+                Future<Integer> status = pool.submit(new Callable<Integer>() {
+                    public Integer call()
+                    throws IOException
+                    {
+                        return handle(argv, response);
+                    }
+                });
+
+                try {
+                    int code = status.get();
+                    out.write(response.toString());
+                    out.write(String.format("status %d%n", code));
+                } catch (ExecutionException failed) {
+                    out.write(response.toString());
+                    out.write(String.format("status %d%n", error(out, 1, "%s", failed.getCause())));
+                }
+
+                out.flush();
+            }
+        } catch (InterruptedException interrupted) {
+            // The server is shutting down.
+        } catch (IOException connectionFailed) {
+            // The client went away, or sat idle too long; nothing more to do.
+        } finally {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Handle one request.
+     * @param argv the request's arguments.
+     * @param out receives the differences.
+     * @return the request's status, as FilterByRegex's exit code.
+     */
+    int handle(String[] argv, Writer out)
+    throws IOException
+    {
+        String  fileA = null;
+        String  fileB = null;
+        String  patternFile = null;
+        boolean quietMode = false;
+        String  algorithmName = "lcs";
+        long    budget = tableBudget;
+
+        try {
+            for (int i = 0; i < argv.length; i++) {
+                if (argv[i].equals("-q")) {
+                    quietMode = true;
+                } else if (argv[i].equals("-p") && i+1 < argv.length) {
+                    patternFile = argv[++i];
+                } else if (argv[i].equals("-a") && i+1 < argv.length) {
+                    algorithmName = argv[++i];
+                } else if (argv[i].equals("-m") && i+1 < argv.length) {
+                    budget = Long.parseLong(argv[++i]) * 1024 * 1024;
+                } else if (!argv[i].startsWith("-") && fileA == null) {
+                    fileA = argv[i];
+                } else if (!argv[i].startsWith("-") && fileB == null) {
+                    fileB = argv[i];
+                } else {
+                    return error(out, 2, "Unrecognized option: %s", argv[i]);
+                }
+            }
+        } catch (NumberFormatException badNumber) {
+            return error(out, 2, "Bad number: %s", badNumber.getMessage());
+        }
+
+        if (fileA == null || fileB == null) {
+            return error(out, 3, "You must specify expected and actual files.");
+        }
+
+        DiffAlgorithm algorithm;
+
+        try {
+            algorithm = DiffEngine.getAlgorithm(algorithmName, budget);
+        } catch (IllegalArgumentException badName) {
+            return error(out, 4, "%s", badName.getMessage());
+        }
+
+        DiffEngine<AbstractedString> diff;
+
+        try {
+            PatternSet patterns = getPatterns(patternFile);
+            BaselineIndex<AbstractedString> baseline = getBaseline(fileA, patternFile, patterns);
+            List<AbstractedString> sequenceB = FilterByRegex.loadContent(fileB, patterns);
+            diff = baseline.compareWith(sequenceB, algorithm);
+        } catch (IOException compareFailed) {
+            return error(out, 1, "%s", compareFailed);
+        } catch (PatternSyntaxException badPattern) {
+            return error(out, 1, "%s", badPattern.getDescription());
+        } catch (RuntimeException compareFailed) {
+            return error(out, 1, "%s", compareFailed);
+        }
+
+        // Any failure to compare the files is reported, and the connection kept.
+        try {
+            if (quietMode) {
+                return diff.countDifferences(Integer.MAX_VALUE - 1);
+            }
+
+            DiffWriter text = new DiffWriter(out);
+            int differences = diff.emitRegions(text);
+            text.flush();
+            return differences;
+        } catch (RuntimeException compareFailed) {
+            return error(out, 1, "%s", compareFailed);
+        }
+    }
+
+    /**
+     * Report a request that failed.
+     * @return the status of the request.
+     */
+    private static int error(Writer out, int status, String diagnostic, Object... args)
+    throws IOException
+    {
+        out.write(String.format("error %s%n", String.format(diagnostic, args)));
+        return status;
+    }
+
+    /**
+     * Get the compiled patterns of a pattern file, compiling them if need be.
+     * @param patternFile a path to the pattern file, or null for no patterns.
+     */
+    private PatternSet getPatterns(final String patternFile)
+    throws IOException
+    {
+        return patternSets.get(fileKey(patternFile), new Callable<PatternSet>() {
+            public PatternSet call()
+            throws IOException
+            {
+                PatternSet patterns = new PatternSet();
+                patterns.setCacheSize(cacheLines);
+
+                if (patternFile != null) {
+                    FilterByRegex.loadPatterns(patternFile, patterns);
+                }
+
+                return patterns;
+            }
+        });
+    }
+
+    /**
+     * Get the index of a baseline file, loading and indexing it if need be.
+     * @param filePath a path to the file.
+     * @param patternFile a path to the pattern file that abstracts it, or null.
+     * @param patterns the compiled patterns.
+     */
+    private BaselineIndex<AbstractedString> getBaseline(final String filePath, String patternFile, final PatternSet patterns)
+    throws IOException
+    {
+        return baselines.get(fileKey(patternFile) + "\t" + fileKey(filePath), new Callable<BaselineIndex<AbstractedString>>() {
+            public BaselineIndex<AbstractedString> call()
+            throws IOException
+            {
+                return new BaselineIndex<AbstractedString>(FilterByRegex.loadAbstracted(filePath, patterns, abstractionPool));
+            }
+        });
+    }
+
+    /**
+     * Identify a version of a file. A cached baseline's lines are read
+     * from a live mapping of the file, so the key must change whenever
+     * the file's content may have: it holds the file's size, its
+     * modification time to the file system's full precision, and its
+     * identity (such as its inode), which changes if it's replaced.
+     * @param filePath a path to the file, or null.
+     * @return a key that changes if the file is modified or replaced.
+     */
+    private static String fileKey(String filePath)
+    throws IOException
+    {
+        if (filePath == null) {
+            return "";
+        }
+
+        File file = new File(filePath);
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return String.format("%s:%d:%s:%s", file.getCanonicalPath(), attributes.size(), attributes.lastModifiedTime(), attributes.fileKey());
+    }
+
+    /**
+     * A Memo is a bounded cache of values that are expensive to compute.
+     * The value for a key is computed only once, even if several threads
+     * ask for it at the same time; the least recently used values are
+     * evicted once the cache is full. A value that fails to compute is
+     * not cached.
+     */
+    private static class Memo<V>
+    {
+        Memo(final int capacity)
+        {
+            this.values = new LinkedHashMap<String, FutureTask<V>>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FutureTask<V>> eldest)
+                {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        private final LinkedHashMap<String, FutureTask<V>> values;
+
+        /**
+         * Get the value for a key, computing it if need be.
+         * @param key the key.
+         * @param compute computes the value.
+         */
+        V get(String key, Callable<V> compute)
+        throws IOException
+        {
+            FutureTask<V> value;
+            boolean computing = false;
+
+            synchronized (values) {
+                value = values.get(key);
+
+                if (value == null) {
+                    value = new FutureTask<V>(compute);
+                    values.put(key, value);
+                    computing = true;
+                }
+            }
+
+            if (computing) {
+                value.run();
+            }
+
+            try {
+                return value.get();
+            } catch (InterruptedException interrupted) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException failed) {
+                synchronized (values) {
+                    if (values.get(key) == value) {
+                        values.remove(key);
+                    }
+                }
+
+                if (failed.getCause() instanceof IOException) {
+                    throw (IOException)failed.getCause();
+                } else if (failed.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException)failed.getCause();
+                } else {
+                    throw new IOException(failed.getCause());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.io.PrintStream;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * DiffStatistics counts the work done by the diff pipeline and times
+ * its phases, so a slow comparison can be traced to loading, pattern
+ * matching, the LCS table or formatting. The counters are process-wide,
+ * and are only maintained while statistics are enabled: when they're
+ * disabled, each instrumented site costs a single test of a static flag.
+ * <p>
+ * The Compute phase is everything the diff algorithm does; for the LCS
+ * algorithm, the Fill and Backtrace phases break it down further. With
+ * lazy loading, lines are abstracted as they're interned, so the Intern
+ * phase includes pattern matching; with parallel loading, it's included
+ * in the Load phase. Regions written by a DiffWriter as they're found
+ * count towards the Output phase, which then overlaps the Compute phase.
+ * <p>
+ * The statistics are reported on standard error by FilterByRegex --stats,
+ * and can be registered as an MBean for long-running batch and server
+ * processes.
+ */
+public class DiffStatistics implements DiffStatisticsMBean
+{
+    /**
+     * The things counted.
+     */
+    public enum Counter
+    {
+        LinesRead, PatternAttempts, PatternHits, CellsComputed, Differences, Chunks;
+    }
+
+    /**
+     * The phases timed.
+     */
+    public enum Phase
+    {
+        Load, Intern, Compute, Fill, Backtrace, Build, Coalesce, Output;
+    }
+
+    /**
+     * The process-wide statistics.
+     */
+    public static final DiffStatistics global = new DiffStatistics();
+
+    /**
+     * The name of the MBean.
+     */
+    public static final String OBJECT_NAME = "com.nuodb.diff:type=DiffStatistics";
+
+    /**
+     * True while statistics are being gathered.
+     */
+    private static volatile boolean enabled = false;
+
+    private final AtomicLongArray counts = new AtomicLongArray(Counter.values().length);
+    private final AtomicLongArray nanos  = new AtomicLongArray(Phase.values().length);
+
+    /**
+     * @return true if statistics are being gathered.
+     */
+    public static boolean isGathering()
+    {
+        return enabled;
+    }
+
+    /**
+     * Count some events, if statistics are enabled.
+     * @param counter what happened.
+     * @param count how many times it happened.
+     */
+    public static void count(Counter counter, long count)
+    {
+        if (enabled) {
+            global.counts.addAndGet(counter.ordinal(), count);
+        }
+    }
+
+    /**
+     * Start timing a phase.
+     * @return the start time, to be passed to stop(), or 0 if
+     * statistics are disabled.
+     */
+    public static long start()
+    {
+        return enabled? System.nanoTime(): 0;
+    }
+
+    /**
+     * Stop timing a phase, if statistics are enabled. A phase that
+     * started while they were disabled isn't counted.
+     * @param phase the phase.
+     * @param start the start time returned by start().
+     */
+    public static void stop(Phase phase, long start)
+    {
+        if (enabled && start != 0) {
+            global.nanos.addAndGet(phase.ordinal(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Register the process-wide statistics with the platform MBean server.
+     */
+    public static void register()
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(global, new ObjectName(OBJECT_NAME));
+        } catch (JMException registrationFailed) {
+            throw new IllegalStateException(registrationFailed);
+        }
+    }
+
+    /**
+     * @return the count of some event.
+     */
+    public long get(Counter counter)
+    {
+        return counts.get(counter.ordinal());
+    }
+
+    /**
+     * @return the nanoseconds spent in a phase.
+     */
+    public long get(Phase phase)
+    {
+        return nanos.get(phase.ordinal());
+    }
+
+    /**
+     * Print the statistics as properties, one per line.
+     * @param out the stream to print to.
+     * @param patterns the pattern set whose per-pattern hits are printed, or null.
+     */
+    public void print(PrintStream out, PatternSet patterns)
+    {
+        for (Counter counter: Counter.values()) {
+            out.printf("%s=%d%n", counter, get(counter));
+        }
+
+        for (Phase phase: Phase.values()) {
+            out.printf("%sNanos=%d%n", phase, get(phase));
+        }
+
+        if (patterns != null) {
+            long[] hits = patterns.getHitCounts();
+
+            for (int i = 0; i < hits.length; i++) {
+                out.printf("PatternHits.%d=%d%n", i, hits[i]);
+            }
+        }
+    }
+
+    public boolean isEnabled()          { return enabled; }
+    public void setEnabled(boolean on)  { enabled = on; }
+
+    public long getLinesRead()          { return get(Counter.LinesRead); }
+    public long getPatternAttempts()    { return get(Counter.PatternAttempts); }
+    public long getPatternHits()        { return get(Counter.PatternHits); }
+    public long getCellsComputed()      { return get(Counter.CellsComputed); }
+    public long getDifferences()        { return get(Counter.Differences); }
+    public long getChunks()             { return get(Counter.Chunks); }
+
+    public long getLoadNanos()          { return get(Phase.Load); }
+    public long getInternNanos()        { return get(Phase.Intern); }
+    public long getComputeNanos()       { return get(Phase.Compute); }
+    public long getFillNanos()          { return get(Phase.Fill); }
+    public long getBacktraceNanos()     { return get(Phase.Backtrace); }
+    public long getBuildNanos()         { return get(Phase.Build); }
+    public long getCoalesceNanos()      { return get(Phase.Coalesce); }
+    public long getOutputNanos()        { return get(Phase.Output); }
+
+    public void reset()
+    {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+
+        for (int i = 0; i < nanos.length(); i++) {
+            nanos.set(i, 0);
+        }
+    }
+}
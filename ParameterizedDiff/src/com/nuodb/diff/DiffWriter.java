@@ -0,0 +1,92 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * A DiffWriter is a RegionSink that writes each region in diff
+ * format, followed by a line separator, straight to a buffered
+ * Writer; no String is built for a region or its content.
+ */
+public class DiffWriter implements RegionSink
+{
+    /**
+     * @param out the destination; it's buffered unless it already is.
+     */
+    public DiffWriter(Writer out)
+    {
+        this.out = out instanceof BufferedWriter? out: new BufferedWriter(out);
+    }
+
+    private final Writer out;
+
+    /**
+     * @see RegionSink#addRegion(DiffRegion)
+     */
+    public void addRegion(DiffRegion region)
+    throws IOException
+    {
+        long start = DiffStatistics.start();
+        region.writeTo(out);
+        out.write(System.lineSeparator());
+        DiffStatistics.stop(DiffStatistics.Phase.Output, start);
+    }
+
+    /**
+     * Format a region in diff format, as its toString() does.
+     * @param region the region.
+     * @return the region in diff format, without a trailing newline.
+     */
+    public static String format(DiffRegion region)
+    {
+        StringWriter result = new StringWriter();
+
+        try {
+            region.writeTo(result);
+        } catch (IOException cannotHappen) {
+            throw new IllegalStateException(cannotHappen);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Write out any buffered regions.
+     */
+    public void flush()
+    throws IOException
+    {
+        long start = DiffStatistics.start();
+        out.flush();
+        DiffStatistics.stop(DiffStatistics.Phase.Output, start);
+    }
+}
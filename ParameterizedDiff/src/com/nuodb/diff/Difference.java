@@ -28,6 +28,9 @@
 
 package com.nuodb.diff;
 
+import java.io.IOException;
+import java.io.Writer;
+
 /**
  * A Difference represents a single editing operation on
  * the pair "Source A" and "Source B" which will serve to
@@ -86,12 +89,83 @@ public class Difference implements Coalescible
         return type == EditType.Remove;
     }
 
+    /**
+     * @see DiffRegion#getStartA()
+     */
+    public int getStartA()
+    {
+        return isRemove()? positionA - 1: positionA;
+    }
+
+    /**
+     * @see DiffRegion#getCountA()
+     */
+    public int getCountA()
+    {
+        return isRemove()? 1: 0;
+    }
+
+    /**
+     * @see DiffRegion#getStartB()
+     */
+    public int getStartB()
+    {
+        return isInsert()? positionB - 1: positionB;
+    }
+
+    /**
+     * @see DiffRegion#getCountB()
+     */
+    public int getCountB()
+    {
+        return isInsert()? 1: 0;
+    }
+
+    /**
+     * @see DiffRegion#getRemoved(int)
+     */
+    public Object getRemoved(int k)
+    {
+        if (k >= getCountA()) {
+            throw new IndexOutOfBoundsException(Integer.toString(k));
+        }
+
+        return content;
+    }
+
+    /**
+     * @see DiffRegion#getInserted(int)
+     */
+    public Object getInserted(int k)
+    {
+        if (k >= getCountB()) {
+            throw new IndexOutOfBoundsException(Integer.toString(k));
+        }
+
+        return content;
+    }
+
     /**
      * @return this difference in diff format.
      */
     public String toString()
     {
-        return String.format("%d%s%d\n%s %s", positionA, type.getOperator(), positionB, type.getIndicator(), content);
+        return DiffWriter.format(this);
+    }
+
+    /**
+     * @see DiffRegion#writeTo(Writer)
+     */
+    public void writeTo(Writer out)
+    throws IOException
+    {
+        out.write(Integer.toString(positionA));
+        out.write(type.getOperator());
+        out.write(Integer.toString(positionB));
+        out.write('\n');
+        out.write(type.getIndicator());
+        out.write(' ');
+        out.write(String.valueOf(content));
     }
 
     /**
@@ -0,0 +1,517 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An EditScript is a compact record of the edit operations that
+ * transform sequenceA into sequenceB. Rather than one Difference per
+ * changed element, it holds one run per removed or inserted range,
+ * as a row of primitive arrays: the run's operation, its zero-based
+ * positions in both sequences, and its length. A DiffAlgorithm fills
+ * it in directly, as a ChangeSink, while it backtraces; a rewrite of
+ * a million lines is then a few arrays rather than millions of objects.
+ * <p>
+ * The element-by-element Differences can still be generated from the
+ * script, or its coalesced regions emitted as Regions: views over the
+ * script and the compared sequences that produce the same diff format
+ * as the Differences and Chunks they stand for, without copying any
+ * content. A script can also pass its regions to a RegionSink as
+ * they are recorded, while the algorithm is still backtracing.
+ */
+public class EditScript implements ChangeSink
+{
+    /**
+     * Begin an empty edit script.
+     */
+    public EditScript()
+    {
+        this(null, null, null);
+    }
+
+    /**
+     * Begin an empty edit script that passes each coalesced region to
+     * a sink as soon as it's recorded; see emitRegions(). The sink's
+     * IOExceptions are thrown from addChange() as UncheckedIOExceptions.
+     * @param sequenceA the first sequence, the source of removed content.
+     * @param sequenceB the second sequence, the source of inserted content.
+     * @param regions the sink that receives the regions, front to back.
+     */
+    EditScript(List<?> sequenceA, List<?> sequenceB, RegionSink regions)
+    {
+        this.sequenceA  = sequenceA;
+        this.sequenceB  = sequenceB;
+        this.regions    = regions;
+    }
+
+    /**
+     * The sequences, and the sink that receives regions as
+     * they are recorded; regions is null once they're all passed on.
+     */
+    private final List<?> sequenceA;
+    private final List<?> sequenceB;
+    private RegionSink regions;
+
+    /**
+     * Operations of runs.
+     */
+    private static final byte REMOVE = 1;
+    private static final byte INSERT = 2;
+
+    /**
+     * The runs: within each changed region, the removal
+     * (if any) is recorded before the insertion (if any).
+     */
+    private byte[] ops      = new byte[64];
+    private int[]  startsA  = new int[64];
+    private int[]  startsB  = new int[64];
+    private int[]  lengths  = new int[64];
+    private int    runCount = 0;
+
+    /**
+     * The total length of all the runs.
+     */
+    private int differenceCount = 0;
+
+    /**
+     * The pending region; adjacent regions are merged into
+     * it until a region arrives that does not abut it.
+     */
+    private int pendingStartA;
+    private int pendingEndA;
+    private int pendingStartB;
+    private int pendingEndB;
+    private boolean pending = false;
+
+    /**
+     * @see ChangeSink#addChange(int, int, int, int)
+     */
+    public void addChange(int startA, int endA, int startB, int endB)
+    {
+        if (startA == endA && startB == endB) {
+            return;
+        }
+
+        if (pending && startA == pendingEndA && startB == pendingEndB) {
+            pendingEndA = endA;
+            pendingEndB = endB;
+        } else {
+            flush();
+            pendingStartA   = startA;
+            pendingEndA     = endA;
+            pendingStartB   = startB;
+            pendingEndB     = endB;
+            pending         = true;
+        }
+    }
+
+    /**
+     * Record the pending region as runs.
+     */
+    private void flush()
+    {
+        if (pending) {
+            int firstRun = runCount;
+
+            if (pendingEndA > pendingStartA) {
+                addRun(REMOVE, pendingStartA, pendingStartB, pendingEndA - pendingStartA);
+            }
+
+            if (pendingEndB > pendingStartB) {
+                addRun(INSERT, pendingEndA, pendingStartB, pendingEndB - pendingStartB);
+            }
+
+            pending = false;
+
+            // A pending region is never split by a later one, so its
+            // runs are final, and can be passed on now.
+            if (regions != null) {
+                try {
+                    emitRegions(sequenceA, sequenceB, regions, firstRun, runCount);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pass on the last region, and stop passing regions to the sink.
+     * @throws IOException if the sink fails.
+     */
+    void endRegions()
+    throws IOException
+    {
+        try {
+            flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        regions = null;
+    }
+
+    private void addRun(byte op, int startA, int startB, int length)
+    {
+        if (runCount == ops.length) {
+            ops     = Arrays.copyOf(ops, runCount * 2);
+            startsA = Arrays.copyOf(startsA, runCount * 2);
+            startsB = Arrays.copyOf(startsB, runCount * 2);
+            lengths = Arrays.copyOf(lengths, runCount * 2);
+        }
+
+        ops[runCount]       = op;
+        startsA[runCount]   = startA;
+        startsB[runCount]   = startB;
+        lengths[runCount]   = length;
+        runCount++;
+        differenceCount += length;
+    }
+
+    /**
+     * @return the number of runs.
+     */
+    public int size()
+    {
+        flush();
+        return runCount;
+    }
+
+    /**
+     * @return the number of element-by-element differences, the total length of the runs.
+     */
+    public int getDifferenceCount()
+    {
+        flush();
+        return differenceCount;
+    }
+
+    /**
+     * @param run the index of a run.
+     * @return the run's operation: Insert or Remove.
+     */
+    public Difference.EditType getType(int run)
+    {
+        return isRemove(run)? Difference.EditType.Remove: Difference.EditType.Insert;
+    }
+
+    /**
+     * @param run the index of a run.
+     * @return true if the run removes elements of sequence A.
+     */
+    public boolean isRemove(int run)
+    {
+        flush();
+        return ops[run] == REMOVE;
+    }
+
+    /**
+     * @param run the index of a run.
+     * @return the zero-based position in sequence A of the run: the
+     * first element removed, or the element the insertion precedes.
+     */
+    public int getStartA(int run)
+    {
+        flush();
+        return startsA[run];
+    }
+
+    /**
+     * @param run the index of a run.
+     * @return the zero-based position in sequence B of the run: the
+     * first element inserted, or the element the removal precedes.
+     */
+    public int getStartB(int run)
+    {
+        flush();
+        return startsB[run];
+    }
+
+    /**
+     * @param run the index of a run.
+     * @return the number of elements the run removes or inserts.
+     */
+    public int getLength(int run)
+    {
+        flush();
+        return lengths[run];
+    }
+
+    /**
+     * Report the runs of this script to another ChangeSink, in order.
+     * @param changes the sink that receives the changed regions.
+     */
+    void replay(ChangeSink changes)
+    {
+        flush();
+
+        for (int run = 0; run < runCount; run++) {
+            if (ops[run] == REMOVE) {
+                changes.addChange(startsA[run], startsA[run] + lengths[run], startsB[run], startsB[run]);
+            } else {
+                changes.addChange(startsA[run], startsA[run], startsB[run], startsB[run] + lengths[run]);
+            }
+        }
+    }
+
+    /**
+     * Generate the element-by-element Differences of this script.
+     * @param sequenceA the first sequence, the source of removed content.
+     * @param sequenceB the second sequence, the source of inserted content.
+     * @return the list of Differences.
+     */
+    public List<Difference> getDifferences(List<?> sequenceA, List<?> sequenceB)
+    {
+        flush();
+        List<Difference> differences = new ArrayList<Difference>(differenceCount);
+
+        // Positions in Differences are one-based, in the style of diff(1).
+        for (int run = 0; run < runCount; run++) {
+            int startA = startsA[run];
+            int startB = startsB[run];
+
+            if (ops[run] == REMOVE) {
+                for (int i = startA; i < startA + lengths[run]; i++) {
+                    differences.add(new Difference(i+1, startB, Difference.EditType.Remove, sequenceA.get(i)));
+                }
+            } else {
+                for (int j = startB; j < startB + lengths[run]; j++) {
+                    differences.add(new Difference(startA, j+1, Difference.EditType.Insert, sequenceB.get(j)));
+                }
+            }
+        }
+
+        return differences;
+    }
+
+    /**
+     * Pass the coalesced regions of this script to a sink, as Regions.
+     * The regions are those coalesceRegions() would form from the
+     * script's Differences: a single removed element and the elements
+     * inserted in its place make one change region, but a longer
+     * removal and the insertion that follows it are separate regions.
+     * @param sequenceA the first sequence, the source of removed content.
+     * @param sequenceB the second sequence, the source of inserted content.
+     * @param regions the sink that receives the regions, front to back.
+     * @throws IOException if the sink fails.
+     */
+    public void emitRegions(List<?> sequenceA, List<?> sequenceB, RegionSink regions)
+    throws IOException
+    {
+        flush();
+        emitRegions(sequenceA, sequenceB, regions, 0, runCount);
+    }
+
+    /**
+     * Pass the coalesced regions of a range of runs to a sink.
+     * The range must not split a change region.
+     * @param fromRun the first run of the range.
+     * @param toRun the run following the range.
+     */
+    void emitRegions(List<?> sequenceA, List<?> sequenceB, RegionSink regions, int fromRun, int toRun)
+    throws IOException
+    {
+        flush();
+        long start = DiffStatistics.start();
+        int chunks = 0;
+
+        for (int run = fromRun; run < toRun; run++) {
+            Region region;
+
+            if (ops[run] == REMOVE) {
+                boolean change =
+                    lengths[run] == 1 &&
+                    run+1 < toRun &&
+                    ops[run+1] == INSERT &&
+                    startsA[run+1] == startsA[run] + 1 &&
+                    startsB[run+1] == startsB[run];
+
+                if (change) {
+                    region = new Region(sequenceA, startsA[run], 1, sequenceB, startsB[run], lengths[run+1]);
+                    run++;
+                } else {
+                    region = new Region(sequenceA, startsA[run], lengths[run], sequenceB, startsB[run], 0);
+                }
+            } else {
+                region = new Region(sequenceA, startsA[run], 0, sequenceB, startsB[run], lengths[run]);
+            }
+
+            if (region.countA + region.countB > 1) {
+                chunks++;
+            }
+
+            regions.addRegion(region);
+        }
+
+        DiffStatistics.count(DiffStatistics.Counter.Chunks, chunks);
+        DiffStatistics.stop(DiffStatistics.Phase.Coalesce, start);
+    }
+
+    /**
+     * A Region is a coalesced region of an EditScript: it removes
+     * sequenceA[startA..startA+countA) and inserts
+     * sequenceB[startB..startB+countB) in their place. It refers
+     * to the sequences rather than copying their content.
+     */
+    public static class Region implements DiffRegion
+    {
+        Region(List<?> sequenceA, int startA, int countA, List<?> sequenceB, int startB, int countB)
+        {
+            this.sequenceA  = sequenceA;
+            this.startA     = startA;
+            this.countA     = countA;
+            this.sequenceB  = sequenceB;
+            this.startB     = startB;
+            this.countB     = countB;
+        }
+
+        private final List<?> sequenceA;
+        private final int startA;
+        private final int countA;
+        private final List<?> sequenceB;
+        private final int startB;
+        private final int countB;
+
+        /**
+         * @return the zero-based position in sequence A of the region.
+         */
+        public int getStartA()
+        {
+            return startA;
+        }
+
+        /**
+         * @return the number of elements of sequence A removed.
+         */
+        public int getCountA()
+        {
+            return countA;
+        }
+
+        /**
+         * @return the zero-based position in sequence B of the region.
+         */
+        public int getStartB()
+        {
+            return startB;
+        }
+
+        /**
+         * @return the number of elements of sequence B inserted.
+         */
+        public int getCountB()
+        {
+            return countB;
+        }
+
+        /**
+         * @param k an index, from 0 to getCountA()-1.
+         * @return the k'th element removed.
+         */
+        public Object getRemoved(int k)
+        {
+            return sequenceA.get(startA + k);
+        }
+
+        /**
+         * @param k an index, from 0 to getCountB()-1.
+         * @return the k'th element inserted.
+         */
+        public Object getInserted(int k)
+        {
+            return sequenceB.get(startB + k);
+        }
+
+        /**
+         * @see DiffRegion#writeTo(Writer)
+         */
+        public void writeTo(Writer out)
+        throws IOException
+        {
+            if (countA > 0 && countB > 0) {
+                writeRange(out, startA, countA);
+                out.write('c');
+                writeRange(out, startB, countB);
+                writeContent(out, sequenceA, startA, countA, Difference.EditType.Remove);
+                out.write("\n---");
+                writeContent(out, sequenceB, startB, countB, Difference.EditType.Insert);
+            } else if (countA > 0) {
+                writeRange(out, startA, countA);
+                out.write('d');
+                out.write(Integer.toString(startB));
+                writeContent(out, sequenceA, startA, countA, Difference.EditType.Remove);
+            } else {
+                out.write(Integer.toString(startA));
+                out.write('a');
+                writeRange(out, startB, countB);
+                writeContent(out, sequenceB, startB, countB, Difference.EditType.Insert);
+            }
+        }
+
+        /**
+         * Write a range in diff format: its one-based first and
+         * last positions, with the last elided if they're the same.
+         */
+        private static void writeRange(Writer out, int start, int count)
+        throws IOException
+        {
+            out.write(Integer.toString(start+1));
+
+            if (count > 1) {
+                out.write(',');
+                out.write(Integer.toString(start+count));
+            }
+        }
+
+        private static void writeContent(Writer out, List<?> sequence, int start, int count, Difference.EditType type)
+        throws IOException
+        {
+            for (int i = start; i < start + count; i++) {
+                out.write('\n');
+                out.write(type.getIndicator());
+                out.write(' ');
+                out.write(String.valueOf(sequence.get(i)));
+            }
+        }
+
+        /**
+         * @return this region in diff format.
+         */
+        public String toString()
+        {
+            return DiffWriter.format(this);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+
+/**
+ * An EditScriptReader reads an edit script written by an
+ * EditScriptWriter directly from a ByteBuffer -- typically
+ * a wrapped byte array or a memory-mapped file -- without
+ * copying it or creating an object per region.
+ * <p>
+ * The reader is a cursor: next() advances to the next region,
+ * whose position, extent and (if the script includes it) content
+ * are then available from the accessors. Lines' text is returned
+ * as read-only views of the UTF-8 bytes in the buffer.
+ * <p>
+ * The script is validated as it's read: a truncated or corrupt
+ * script causes an IOException, never a garbage region.
+ *
+ * @see EditScriptWriter
+ */
+public class EditScriptReader
+{
+    /**
+     * Begin reading an edit script.
+     * @param buffer the script, from its current position to its limit.
+     * @throws IOException if the buffer doesn't hold an edit script.
+     */
+    public EditScriptReader(ByteBuffer buffer)
+    throws IOException
+    {
+        this.buffer = buffer.asReadOnlyBuffer();
+
+        for (byte expected: EditScriptWriter.MAGIC) {
+
+            if (this.buffer.remaining() == 0 || this.buffer.get() != expected) {
+                throw new IOException("Not an edit script");
+            }
+        }
+
+        if (this.buffer.remaining() < 2 || this.buffer.get() != EditScriptWriter.VERSION) {
+            throw new IOException("Unsupported edit script version");
+        }
+
+        this.flags = this.buffer.get();
+    }
+
+    private final ByteBuffer buffer;
+    private final int flags;
+
+    /**
+     * The current region.
+     */
+    private int op = -1;
+    private int startA = 0;
+    private int countA = 0;
+    private int startB = 0;
+    private int countB = 0;
+
+    /**
+     * The offsets and lengths of the current region's lines,
+     * found once by next() so that each line can be got directly.
+     */
+    private int[] lineOffsets = new int[16];
+    private int[] lineLengths = new int[16];
+
+    /**
+     * @return true if the script includes the text of each line.
+     */
+    public boolean hasContent()
+    {
+        return (flags & EditScriptWriter.CONTENT) != 0;
+    }
+
+    /**
+     * Advance to the next region.
+     * @return false at the end of the script.
+     * @throws IOException if the script is truncated or corrupt.
+     */
+    public boolean next()
+    throws IOException
+    {
+        if (op == EditScriptWriter.END) {
+            return false;
+        }
+
+        if (op > 0) {
+            startA += countA;
+            startB += countB;
+        }
+
+        op = readByte();
+
+        if (op == EditScriptWriter.END) {
+            countA = 0;
+            countB = 0;
+            return false;
+        }
+
+        if (op < 0 || op > EditScriptWriter.CHANGE) {
+            throw new IOException("Bad op code " + op + " at offset " + (buffer.position() - 1));
+        }
+
+        int common = readVarint();
+        countA = (op & EditScriptWriter.REMOVE) != 0? readVarint(): 0;
+        countB = (op & EditScriptWriter.INSERT) != 0? readVarint(): 0;
+
+        if ((long)startA + common + countA > Integer.MAX_VALUE || (long)startB + common + countB > Integer.MAX_VALUE) {
+            throw new IOException("Region out of range at offset " + buffer.position());
+        }
+
+        startA += common;
+        startB += common;
+
+        if (hasContent()) {
+            indexLines(countA + countB);
+        }
+
+        return true;
+    }
+
+    /**
+     * Find the offset and length of each of the current region's
+     * lines, leaving the buffer positioned after them.
+     */
+    private void indexLines(int lines)
+    throws IOException
+    {
+        // Every line takes at least a byte, so a count larger than
+        // the rest of the buffer is corrupt; check before allocating.
+        if (lines > buffer.remaining()) {
+            throw new IOException("Truncated edit script: " + lines + " lines at offset " + buffer.position());
+        }
+
+        if (lines > lineOffsets.length) {
+            int capacity = Math.max(lines, lineOffsets.length * 2);
+            lineOffsets = Arrays.copyOf(lineOffsets, capacity);
+            lineLengths = Arrays.copyOf(lineLengths, capacity);
+        }
+
+        for (int i = 0; i < lines; i++) {
+            int length = readVarint();
+
+            if (length > buffer.remaining()) {
+                throw new IOException("Truncated edit script: a line of " + length + " bytes at offset " + buffer.position());
+            }
+
+            lineOffsets[i] = buffer.position();
+            lineLengths[i] = length;
+            buffer.position(buffer.position() + length);
+        }
+    }
+
+    /**
+     * @return true if the current region removes lines.
+     */
+    public boolean isRemove()
+    {
+        return (op & EditScriptWriter.REMOVE) != 0;
+    }
+
+    /**
+     * @return true if the current region inserts lines.
+     */
+    public boolean isInsert()
+    {
+        return (op & EditScriptWriter.INSERT) != 0;
+    }
+
+    /**
+     * @return the zero-based index of the first line of A in the current region.
+     */
+    public int getStartA()
+    {
+        return startA;
+    }
+
+    /**
+     * @return the number of lines of A the current region removes.
+     */
+    public int getCountA()
+    {
+        return countA;
+    }
+
+    /**
+     * @return the zero-based index of the first line of B in the current region.
+     */
+    public int getStartB()
+    {
+        return startB;
+    }
+
+    /**
+     * @return the number of lines of B the current region inserts.
+     */
+    public int getCountB()
+    {
+        return countB;
+    }
+
+    /**
+     * @param index the index of a removed line within the current region.
+     * @return the line's UTF-8 bytes.
+     */
+    public ByteBuffer getRemovedLine(int index)
+    {
+        if (index < 0 || index >= countA) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+
+        return getLine(index);
+    }
+
+    /**
+     * @param index the index of an inserted line within the current region.
+     * @return the line's UTF-8 bytes.
+     */
+    public ByteBuffer getInsertedLine(int index)
+    {
+        if (index < 0 || index >= countB) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+
+        return getLine(countA + index);
+    }
+
+    /**
+     * Decode a line returned by getRemovedLine() or getInsertedLine().
+     * @param line the line's bytes.
+     * @return the line's text.
+     */
+    public static String decode(ByteBuffer line)
+    {
+        return StandardCharsets.UTF_8.decode(line.duplicate()).toString();
+    }
+
+    /**
+     * Get the content of the nth line of the current region;
+     * the removed lines come first, then the inserted lines.
+     */
+    private ByteBuffer getLine(int n)
+    {
+        if (!hasContent()) {
+            throw new IllegalStateException("The edit script doesn't include content");
+        }
+
+        ByteBuffer line = buffer.duplicate();
+        line.limit(lineOffsets[n] + lineLengths[n]);
+        line.position(lineOffsets[n]);
+        return line.slice();
+    }
+
+    private int readByte()
+    throws IOException
+    {
+        if (!buffer.hasRemaining()) {
+            throw new IOException("Truncated edit script");
+        }
+
+        return buffer.get();
+    }
+
+    /**
+     * Read an unsigned varint; an int takes at most five bytes.
+     */
+    private int readVarint()
+    throws IOException
+    {
+        int value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0) {
+
+                if (value < 0 || (shift == 28 && (b & 0x70) != 0)) {
+                    throw new IOException("Varint out of range at offset " + (buffer.position() - 1));
+                }
+
+                return value;
+            }
+        }
+
+        throw new IOException("Varint longer than 5 bytes at offset " + (buffer.position() - 1));
+    }
+}
@@ -0,0 +1,186 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An EditScriptWriter is a RegionSink that writes coalesced regions
+ * in a compact binary format, for tools that would otherwise have to
+ * parse the textual diff format. The format is:
+ * <pre>
+ *     script  := 'N' 'D' 'I' 'F' version flags region* 0
+ *     region  := op common [countA] [countB] [line*]
+ *     line    := length byte*
+ * </pre>
+ * where version and flags are single bytes, op is a single byte -- 1
+ * for a removal, 2 for an insertion, 3 for a change -- and every other
+ * number is an unsigned LEB128 varint. common is the number of lines
+ * both files share between the end of the previous region (or the
+ * start of the files) and this region; countA is present if the op
+ * removes lines, countB if it inserts lines. So a region's position
+ * isn't stored at all: it follows from the regions before it, and the
+ * lines of a region can be found in the original files by index.
+ * <p>
+ * If the CONTENT flag is set, each region is followed by the text of
+ * its removed lines and then its inserted lines, each as a length and
+ * that many bytes of UTF-8.
+ *
+ * @see EditScriptReader
+ */
+public class EditScriptWriter implements RegionSink
+{
+    /**
+     * The bytes every edit script begins with.
+     */
+    static final byte[] MAGIC = { 'N', 'D', 'I', 'F' };
+
+    /**
+     * The version of the format.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * The flag that marks a script including the lines' text.
+     */
+    public static final int CONTENT = 1;
+
+    /**
+     * Op codes.
+     */
+    static final int END    = 0;
+    static final int REMOVE = 1;
+    static final int INSERT = 2;
+    static final int CHANGE = REMOVE | INSERT;
+
+    /**
+     * Begin an edit script.
+     * @param out the destination; it's buffered by the writer.
+     * @param includeContent if true, write the text of each line.
+     */
+    public EditScriptWriter(OutputStream out, boolean includeContent)
+    throws IOException
+    {
+        this.out            = new BufferedOutputStream(out);
+        this.includeContent = includeContent;
+
+        this.out.write(MAGIC);
+        this.out.write(VERSION);
+        this.out.write(includeContent? CONTENT: 0);
+    }
+
+    private final OutputStream out;
+    private final boolean includeContent;
+
+    /**
+     * The zero-based positions following the previous region.
+     */
+    private int endA = 0;
+    private int endB = 0;
+
+    /**
+     * @see RegionSink#addRegion(DiffRegion)
+     */
+    public void addRegion(DiffRegion region)
+    throws IOException
+    {
+        int startA = region.getStartA();
+        int countA = region.getCountA();
+        int startB = region.getStartB();
+        int countB = region.getCountB();
+
+        int common = startA - endA;
+
+        if (common < 0 || startB - endB != common) {
+            throw new IllegalArgumentException(String.format("Region at %d,%d is out of order", startA + 1, startB + 1));
+        }
+
+        int op = (countA > 0? REMOVE: 0) | (countB > 0? INSERT: 0);
+        out.write(op);
+        writeVarint(common);
+
+        if (countA > 0) {
+            writeVarint(countA);
+        }
+
+        if (countB > 0) {
+            writeVarint(countB);
+        }
+
+        if (includeContent) {
+
+            for (int k = 0; k < countA; k++) {
+                writeLine(region.getRemoved(k));
+            }
+
+            for (int k = 0; k < countB; k++) {
+                writeLine(region.getInserted(k));
+            }
+        }
+
+        endA = startA + countA;
+        endB = startB + countB;
+    }
+
+    /**
+     * End the script and flush it to the destination.
+     */
+    public void finish()
+    throws IOException
+    {
+        out.write(END);
+        out.flush();
+    }
+
+    private void writeLine(Object line)
+    throws IOException
+    {
+        byte[] bytes = String.valueOf(line).getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Write an unsigned LEB128 varint: seven bits per byte, low bits
+     * first, with the high bit set on every byte but the last.
+     */
+    private void writeVarint(int value)
+    throws IOException
+    {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write(value);
+    }
+}
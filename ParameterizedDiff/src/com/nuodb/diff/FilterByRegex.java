@@ -29,9 +29,19 @@ package com.nuodb.diff;
 
 import java.io.*;
 
+import java.nio.charset.StandardCharsets;
+
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import java.util.regex.*;
 
@@ -43,10 +53,43 @@ import java.util.regex.*;
  */
 public class FilterByRegex
 {
+    /**
+     * The default number of lines whose abstracts are cached.
+     */
+    public static final int DEFAULT_CACHE_LINES = 1 << 16;
+
+    /**
+     * Exit codes are truncated to a byte by the operating system;
+     * don't let a multiple of 256 differences look like success.
+     */
+    static final int MAX_EXIT_CODE = 255;
+
     /**
      * Program entry point: process command-line options, load
      * the pattern file and the contents of the files to be 
      * compared, and emit a coalesced list of differences.
+     * <p>
+     * If the two files are directories, or a manifest of pairs
+     * is given with -b manifestFile, every pair of files is
+     * compared; see BatchDiff. Given more than two files, the
+     * first is compared with each of the others, and is only
+     * loaded and indexed once. With -l port, compare files on
+     * request instead; see DiffServer. Its token is written to
+     * --token-file tokenFile, by default ~/.diffserver-token.
+     * With -o scriptFile, the differences are written as a binary
+     * edit script instead of as text (-O includes the lines' text
+     * in the script); see EditScriptWriter.
+     * <p>
+     * Files whose names end in .gz are inflated as they're read;
+     * see PipelinedLines.
+     * <p>
+     * The exit status is the number of line-by-line differences,
+     * at most 255. With -k maxDifferences, it's at most
+     * maxDifferences+1. With -q, the comparison stops as soon as
+     * the status is known, once that many or 255 are found.
+     * With -q, --count bitparallel counts the differences from the
+     * length of the LCS, found by a BitParallelLcs, rather than by
+     * MyersDiff.distance().
      */
     public static void main(String[] argv)
     throws Exception
@@ -54,21 +97,60 @@ public class FilterByRegex
         // Command line processing.
         String  fileA = null;
         String  fileB = null;
+        List<String> moreFiles = new ArrayList<String>();
+        String  manifest = null;
+        String  scriptFile = null;
+        boolean scriptContent = false;
+        int     listenPort = -1;
+        String  tokenFile = new File(System.getProperty("user.home"), ".diffserver-token").getPath();
         boolean quietMode = false;
+        String  algorithmName = "lcs";
+        String  counterName = "myers";
+        long    tableBudget = LcsDiff.DEFAULT_TABLE_BUDGET;
+        int     windowSize = 0;
+        int     threads = Runtime.getRuntime().availableProcessors();
+        int     cacheLines = DEFAULT_CACHE_LINES;
+        int     maxDifferences = Integer.MAX_VALUE - 1;
 
         for (int i = 0; i < argv.length; i++) {
             if (argv[i].equals("-q")) {
                 quietMode = true;
             } else if (argv[i].equals("-p") && i+1 < argv.length) {
-                loadPatterns(argv[++i]);
+                loadPatterns(argv[++i], AbstractedString.patterns);
+            } else if (argv[i].equals("-a") && i+1 < argv.length) {
+                algorithmName = argv[++i];
+            } else if (argv[i].equals("--count") && i+1 < argv.length) {
+                counterName = argv[++i];
+            } else if (argv[i].equals("-m") && i+1 < argv.length) {
+                tableBudget = Long.parseLong(argv[++i]) * 1024 * 1024;
+            } else if (argv[i].equals("-s") && i+1 < argv.length) {
+                windowSize = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equals("-j") && i+1 < argv.length) {
+                threads = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equals("--cache-lines") && i+1 < argv.length) {
+                cacheLines = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equals("-k") && i+1 < argv.length) {
+                maxDifferences = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equals("-b") && i+1 < argv.length) {
+                manifest = argv[++i];
+            } else if (argv[i].equals("-l") && i+1 < argv.length) {
+                listenPort = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equals("--token-file") && i+1 < argv.length) {
+                tokenFile = argv[++i];
+            } else if (argv[i].equals("--stats")) {
+                DiffStatistics.global.setEnabled(true);
+            } else if ((argv[i].equals("-o") || argv[i].equals("-O")) && i+1 < argv.length) {
+                scriptContent = argv[i].equals("-O");
+                scriptFile = argv[++i];
+            } else if (argv[i].equals("-r")) {
+                AbstractedString.patterns.setAdaptiveOrder(true);
             } else if (!argv[i].startsWith("-")) {
                 if (fileA == null) {
                     fileA = argv[i];
                 } else if (fileB == null) {
                     fileB = argv[i];
                 } else {
-                    usage("Unrecognized option: %s", argv[i]);
-                    System.exit(1);
+                    moreFiles.add(argv[i]);
                 }
             } else {
                 usage("Unrecognized option: %s", argv[i]);
@@ -76,62 +158,476 @@ public class FilterByRegex
             }
         }
 
-        if (fileA == null || fileB == null) {
+        if (windowSize < 0 || windowSize > 0 && windowSize < StreamingDiff.DEFAULT_ANCHOR_LENGTH) {
+            usage("The window must hold at least %d lines.", StreamingDiff.DEFAULT_ANCHOR_LENGTH);
+            System.exit(2);
+        }
+
+        if (cacheLines < 0) {
+            usage("The cache must hold 0 or more lines.");
+            System.exit(2);
+        }
+
+        if (listenPort >= 0) {
+            DiffStatistics.register();
+            new DiffServer(listenPort, new File(tokenFile), threads, tableBudget, cacheLines).run();
+            return;
+        }
+
+        if (manifest == null && (fileA == null || fileB == null)) {
             usage("You must specify expected and actual files.");
             System.exit(3);
         }
 
-        List<AbstractedString> sequenceA = loadContent(fileA);
-        List<AbstractedString> sequenceB  = loadContent(fileB);
+        AbstractedString.patterns.setCacheSize(cacheLines);
+
+        DiffAlgorithm algorithm = null;
+        DistanceCounter counter = null;
+
+        try {
+            algorithm = DiffEngine.getAlgorithm(algorithmName, tableBudget);
+            counter = DiffEngine.getDistanceCounter(counterName);
+        } catch (IllegalArgumentException badName) {
+            usage(badName.getMessage());
+            System.exit(4);
+        }
+
+        if (manifest != null || !moreFiles.isEmpty() || (new File(fileA).isDirectory() && new File(fileB).isDirectory())) {
+            BatchDiff batch = new BatchDiff(algorithm, counter, threads, quietMode);
+            DiffStatistics.register();
+
+            if (manifest != null) {
+                batch.addManifest(manifest);
+            } else if (!moreFiles.isEmpty()) {
+                batch.addPair(new File(fileA), new File(fileB));
+
+                for (String file: moreFiles) {
+                    batch.addPair(new File(fileA), new File(file));
+                }
+            } else {
+                batch.addTrees(new File(fileA), new File(fileB));
+            }
+
+            exit(batch.run(System.err));
+        }
+
+        // Choose where the coalesced regions of differences go:
+        // a binary edit script, diff format on stderr, or nowhere.
+        RegionSink regions;
+        OutputStream scriptStream = null;
+        EditScriptWriter script = null;
+        DiffWriter text = null;
+
+        if (scriptFile != null) {
+            scriptStream = new FileOutputStream(scriptFile);
+            regions = script = new EditScriptWriter(scriptStream, scriptContent);
+        } else if (quietMode) {
+            regions = new RegionSink() {
+                public void addRegion(DiffRegion region) {}
+            };
+        } else {
+            regions = text = new DiffWriter(new OutputStreamWriter(System.err));
+        }
+
+        // Compute the line-by-line differences; these are
+        // coalesced into the more familiar diff format by
+        // the Chunk.coalesce logic as they're found, and
+        // each region is emitted as soon as it's complete.
+        int differenceCount;
+
+        // If only the exit status is wanted, there's no need to
+        // count beyond the largest status that can be returned.
+        boolean countOnly = quietMode && script == null;
+        int limit = countOnly? Math.min(maxDifferences, MAX_EXIT_CODE - 1): Integer.MAX_VALUE - 1;
+
+        if (windowSize > 0) {
+            differenceCount = streamDifferences(fileA, fileB, algorithm, windowSize, limit, regions);
+        } else if (countOnly) {
+            // Count the differences without generating
+            // them, and stop past the limit.
+            DiffEngine<AbstractedString> diff = prepareComparison(fileA, fileB, algorithm, threads);
+            diff.setDistanceCounter(counter);
+            differenceCount = diff.countDifferences(limit);
+        } else {
+            differenceCount = prepareComparison(fileA, fileB, algorithm, threads).emitRegions(regions);
+        }
+
+        if (script != null) {
+            script.finish();
+            scriptStream.close();
+        } else if (text != null) {
+            text.flush();
+        }
+
+        exit(Math.min(differenceCount, maxDifferences + 1));
+    }
+
+    /**
+     * Exit, first printing statistics to standard error if they're being gathered.
+     * @param status the exit status; it's capped at MAX_EXIT_CODE.
+     */
+    private static void exit(int status)
+    {
+        if (DiffStatistics.isGathering()) {
+            DiffStatistics.global.print(System.err, AbstractedString.patterns);
+        }
+
+        System.exit(Math.min(status, MAX_EXIT_CODE));
+    }
+
+    /**
+     * Load two files to be compared, using the patterns loaded so far.
+     * @param fileA the path to the first file.
+     * @param fileB the path to the second file.
+     * @param algorithm the algorithm that compares the files.
+     * @param threads the number of threads that load and abstract the files.
+     * @return an engine ready to compare the files.
+     */
+    static DiffEngine<AbstractedString> prepareComparison(String fileA, String fileB, DiffAlgorithm algorithm, int threads)
+    throws IOException
+    {
+        long start = DiffStatistics.start();
+        List<AbstractedString> sequenceA;
+        List<AbstractedString> sequenceB;
+
+        if (threads > 1 && AbstractedString.patterns.size() > 0) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+
+            try {
+                ContentLoader loadA = new ContentLoader(fileA, AbstractedString.patterns);
+                ContentLoader loadB = new ContentLoader(fileB, AbstractedString.patterns);
+                pool.execute(loadA);
+                pool.execute(loadB);
+                sequenceA = ContentLoader.join(loadA);
+                sequenceB = ContentLoader.join(loadB);
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            sequenceA = loadContent(fileA, AbstractedString.patterns);
+            sequenceB = loadContent(fileB, AbstractedString.patterns);
+        }
+
+        DiffStatistics.stop(DiffStatistics.Phase.Load, start);
+
+        return new DiffEngine<AbstractedString>(sequenceA, sequenceB, algorithm);
+    }
+
+    /**
+     * Compare two files a window at a time, emitting coalesced
+     * differences as they are found.
+     * @param fileA the path to the first file.
+     * @param fileB the path to the second file.
+     * @param algorithm the algorithm that compares each window.
+     * @param windowSize the number of lines buffered from each file.
+     * @param limit stop once more than this many differences are found.
+     * @param regions receives the coalesced differences.
+     * @return the number of line-by-line differences, which
+     * may be more than limit+1 if the comparison stopped early.
+     */
+    private static int streamDifferences(String fileA, String fileB, DiffAlgorithm algorithm, int windowSize, int limit, RegionSink regions)
+    throws IOException
+    {
+        StreamingDiff<AbstractedString> diff = new StreamingDiff<AbstractedString>(
+            new ContentReader(fileA),
+            new ContentReader(fileB),
+            algorithm,
+            windowSize
+        );
+
+        while (diff.hasNext() && diff.getDifferenceCount() <= limit) {
+            regions.addRegion(diff.next());
+        }
+
+        return diff.getDifferenceCount();
+    }
+
+    /**
+     * Load the contents of one of the files to be compared. The file
+     * is memory-mapped, and its lines are presented as AbstractedStrings
+     * on demand, so lines that are never printed are never decoded.
+     * Each AbstractedString is kept once it's made, so a line is only
+     * abstracted once, however often it's compared. The list isn't
+     * thread-safe. A compressed file can't be mapped; see loadCompressed().
+     * @param filePath a path to the file.
+     * @param patterns the patterns that abstract the file's lines.
+     */
+    static List<AbstractedString> loadContent(String filePath, final PatternSet patterns)
+    throws IOException
+    {
+        if (PipelinedLines.isCompressed(filePath)) {
+            return loadCompressed(filePath, patterns);
+        }
+
+        final MappedLines lines = new MappedLines(filePath);
+        DiffStatistics.count(DiffStatistics.Counter.LinesRead, lines.size());
+
+        final AbstractedString[] content = new AbstractedString[lines.size()];
 
-        // Get a line-by-line list of differences.
-        // This list is coalesced into the more familiar
-        // diff format by the Chunk.coalesceChunks logic,
-        // but it is itself a valid diff (a verbose one).
-        DiffEngine<AbstractedString> diff = new DiffEngine<AbstractedString>(sequenceA, sequenceB);
-        List<Difference> diagnostics = diff.getDifferences();
+        return new AbstractList<AbstractedString>() {
+            public int size() { return content.length; }
+            public AbstractedString get(int index)
+            {
+                if (content[index] == null) {
+                    content[index] = new AbstractedString(lines, index, patterns);
+                }
 
-        // Emit the list of coalesced differences if requested.
-        if (!quietMode) {
-            for (Object diagnostic: DiffEngine.coalesceRegions(diagnostics)) {
-                System.err.println(diagnostic);
+                return content[index];
             }
+        };
+    }
+
+    /**
+     * Load a compressed file, and abstract its lines on this thread
+     * while a PipelinedLines inflates the rest of the file and splits
+     * it into lines.
+     * @param filePath a path to the file.
+     * @param patterns the patterns that abstract the file's lines.
+     */
+    static List<AbstractedString> loadCompressed(String filePath, PatternSet patterns)
+    throws IOException
+    {
+        List<AbstractedString> content = new ArrayList<AbstractedString>();
+        PipelinedLines lines = new PipelinedLines(filePath);
+
+        try {
+            for (String[] batch = lines.nextBatch(); batch != null; batch = lines.nextBatch()) {
+                for (String line: batch) {
+                    content.add(new AbstractedString(line, patterns));
+                }
+            }
+        } finally {
+            lines.close();
         }
 
-        System.exit(diagnostics.size());
+        DiffStatistics.count(DiffStatistics.Counter.LinesRead, content.size());
+        return content;
     }
 
     /**
-     * Load the contents of one of the files to be compared.
+     * Load a file and abstract all its lines up front. Once loaded,
+     * the content can be shared by threads comparing it concurrently.
      * @param filePath a path to the file.
+     * @param patterns the patterns that abstract the file's lines.
+     * @param pool the pool that abstracts the lines.
      */
-    private static List<AbstractedString> loadContent(String filePath)
+    static List<AbstractedString> loadAbstracted(String filePath, PatternSet patterns, ForkJoinPool pool)
     throws IOException
     {
-        List<AbstractedString>  result  = new ArrayList<AbstractedString>();
-        BufferedReader          in      = new BufferedReader(new FileReader(filePath));
+        ContentLoader loader = new ContentLoader(filePath, patterns);
+        pool.execute(loader);
+        return ContentLoader.join(loader);
+    }
+
+    /**
+     * A ContentLoader loads one of the files to be compared on a
+     * ForkJoinPool and abstracts all its lines up front, a batch
+     * of lines per task, so the pattern matching runs in parallel
+     * instead of one line at a time as the diff compares them.
+     * A compressed file is read by a PipelinedLines, and each batch
+     * of lines is abstracted by a task of its own as it arrives.
+     */
+    private static class ContentLoader extends RecursiveTask<List<AbstractedString>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * @param filePath a path to the file.
+         * @param patterns the patterns that abstract the file's lines.
+         */
+        ContentLoader(String filePath, PatternSet patterns)
+        {
+            this.filePath   = filePath;
+            this.patterns   = patterns;
+        }
+
+        private final String filePath;
+        private final PatternSet patterns;
+
+        @Override
+        protected List<AbstractedString> compute()
+        {
+            if (PipelinedLines.isCompressed(filePath)) {
+                return computeCompressed();
+            }
 
-        for (String raw = in.readLine(); raw != null; raw = in.readLine()) {
-            result.add(new AbstractedString(raw));
+            MappedLines lines;
+
+            try {
+                lines = new MappedLines(filePath);
+            } catch (IOException loadFailed) {
+                throw new UncheckedIOException(loadFailed);
+            }
+
+            DiffStatistics.count(DiffStatistics.Counter.LinesRead, lines.size());
+            AbstractedString[] content = new AbstractedString[lines.size()];
+            new AbstractBatch(lines, patterns, content, 0, content.length).invoke();
+            return Arrays.asList(content);
         }
 
-        return result;
+        private List<AbstractedString> computeCompressed()
+        {
+            List<AbstractLines> tasks = new ArrayList<AbstractLines>();
+            PipelinedLines lines;
+
+            try {
+                lines = new PipelinedLines(filePath);
+
+                try {
+                    for (String[] batch = lines.nextBatch(); batch != null; batch = lines.nextBatch()) {
+                        AbstractLines task = new AbstractLines(batch, patterns);
+                        task.fork();
+                        tasks.add(task);
+                    }
+                } finally {
+                    lines.close();
+                }
+            } catch (IOException loadFailed) {
+                throw new UncheckedIOException(loadFailed);
+            }
+
+            List<AbstractedString> content = new ArrayList<AbstractedString>();
+
+            for (AbstractLines task: tasks) {
+                content.addAll(Arrays.asList(task.join()));
+            }
+
+            DiffStatistics.count(DiffStatistics.Counter.LinesRead, content.size());
+            return content;
+        }
+
+        /**
+         * Wait for a loader to finish.
+         * @param loader the loader.
+         * @return the loaded content.
+         * @throws IOException if the file couldn't be read.
+         */
+        static List<AbstractedString> join(ContentLoader loader)
+        throws IOException
+        {
+            try {
+                return loader.join();
+            } catch (UncheckedIOException loadFailed) {
+                throw loadFailed.getCause();
+            }
+        }
+    }
+
+    /**
+     * An AbstractBatch abstracts a range of lines, splitting
+     * the range in half until it's small enough for one task.
+     * Each line is stored at its own index, so the order of
+     * the lines doesn't depend on the order the tasks run in.
+     */
+    private static class AbstractBatch extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * @param lines the lines of a mapped file.
+         * @param patterns the patterns that abstract the lines.
+         * @param content receives the abstracted lines.
+         * @param from the first line in the batch.
+         * @param to the line after the last line in the batch.
+         */
+        AbstractBatch(MappedLines lines, PatternSet patterns, AbstractedString[] content, int from, int to)
+        {
+            this.lines      = lines;
+            this.patterns   = patterns;
+            this.content    = content;
+            this.from       = from;
+            this.to         = to;
+        }
+
+        private final MappedLines lines;
+        private final PatternSet patterns;
+        private final AbstractedString[] content;
+        private final int from;
+        private final int to;
+
+        /**
+         * The number of lines abstracted by a single task.
+         */
+        private static final int BATCH_SIZE = 1 << 12;
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= BATCH_SIZE) {
+                for (int i = from; i < to; i++) {
+                    content[i] = new AbstractedString(lines, i, patterns);
+                    // Hashing the line abstracts it.
+                    content[i].hashCode();
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new AbstractBatch(lines, patterns, content, from, middle), new AbstractBatch(lines, patterns, content, middle, to));
+            }
+        }
+    }
+
+    /**
+     * An AbstractLines abstracts a batch of lines read by a PipelinedLines.
+     */
+    private static class AbstractLines extends RecursiveTask<AbstractedString[]>
+    {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * @param lines the lines.
+         * @param patterns the patterns that abstract the lines.
+         */
+        AbstractLines(String[] lines, PatternSet patterns)
+        {
+            this.lines      = lines;
+            this.patterns   = patterns;
+        }
+
+        private final String[] lines;
+        private final PatternSet patterns;
+
+        @Override
+        protected AbstractedString[] compute()
+        {
+            AbstractedString[] content = new AbstractedString[lines.length];
+
+            for (int i = 0; i < lines.length; i++) {
+                content[i] = new AbstractedString(lines[i], patterns);
+            }
+
+            return content;
+        }
     }
 
     /**
      * Load a file of regualar expression patterns and compile them.
      * @param patternFile a path to the file.
+     * @param patterns receives the compiled patterns.
      */
-    private static void loadPatterns(String patternFile)
+    static void loadPatterns(String patternFile, PatternSet patterns)
     throws IOException
     {
-        BufferedReader in = new BufferedReader(new FileReader(patternFile));
+        BufferedReader in = openReader(patternFile);
 
-        for (String pattern = in.readLine(); pattern != null; pattern = in.readLine()) {
-            AbstractedString.patterns.add(Pattern.compile(pattern));
+        try {
+            for (String pattern = in.readLine(); pattern != null; pattern = in.readLine()) {
+                patterns.add(Pattern.compile(pattern));
+            }
+        } finally {
+            in.close();
         }
     }
 
+    /**
+     * Open a file as UTF-8 text, inflating it if it's compressed.
+     * @param filePath a path to the file.
+     */
+    private static BufferedReader openReader(String filePath)
+    throws IOException
+    {
+        return new BufferedReader(new InputStreamReader(PipelinedLines.open(filePath), StandardCharsets.UTF_8));
+    }
+
     /**
      * Display usage information.
      * @param diagnostic a printf-style diagnostic.
@@ -141,71 +637,192 @@ public class FilterByRegex
     {
         System.err.printf(diagnostic, args);
         System.err.println();
-        System.err.println("Usage: FilterByRegex fileA fileB -p patternFile [-q]");
+        System.err.println("Usage: FilterByRegex {fileA fileB... | dirA dirB | -b manifestFile | -l port [--token-file tokenFile]} -p patternFile [-q] [-a lcs|myers|hirschberg|patience|anchored] [--count myers|bitparallel] [-m tableMegabytes] [-s windowLines] [-k maxDifferences] [-r] [-j threads] [--cache-lines lines] [-o|-O scriptFile] [--stats]");
     }
 
     /**
-     * A AbstractedString is a string (typically a line from a file) that
-     * implements the Comparable interface in terms of an abstract of 
-     * the original string; the abstract is formed by concatenating the
-     * capturing groups of the first regular expression in the pattern
-     * library that matches the original text.
+     * A ContentReader reads one of the files to be compared a line
+     * at a time, for callers that don't want the whole file in memory.
      */
-    private static class AbstractedString implements Comparable<AbstractedString>
+    private static class ContentReader implements Iterator<AbstractedString>
     {
-        AbstractedString(String original)
+        /**
+         * @param filePath a path to the file.
+         */
+        ContentReader(String filePath)
+        throws IOException
         {
-            this.original = original;
+            this.in = openReader(filePath);
+            this.nextLine = in.readLine();
+        }
 
-            String abstracted = original;
+        private final BufferedReader in;
 
-            for (Pattern p: patterns) {
-                Matcher matcher  = p.matcher(original);
+        /**
+         * The next line, or null at the end of the file.
+         */
+        private String nextLine;
+
+        public boolean hasNext()
+        {
+            return nextLine != null;
+        }
 
-                if (matcher.matches()) {
-                
-                    // The groups in the regex are significant.
-                    StringBuilder abstractedBuffer = new StringBuilder();
+        public AbstractedString next()
+        {
+            if (nextLine == null) {
+                throw new NoSuchElementException();
+            }
 
-                    for (int i = 1; i <= matcher.groupCount(); i++) {
-                        abstractedBuffer.append(matcher.group(i));
-                    }
+            AbstractedString result = new AbstractedString(nextLine, AbstractedString.patterns);
+            DiffStatistics.count(DiffStatistics.Counter.LinesRead, 1);
 
-                    abstracted = abstractedBuffer.toString();
+            try {
+                nextLine = in.readLine();
 
-                    // First match wins.
-                    break;
+                if (nextLine == null) {
+                    in.close();
                 }
+            } catch (IOException readFailed) {
+                throw new UncheckedIOException(readFailed);
             }
 
-            this.abstracted = abstracted;
+            return result;
         }
 
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * A AbstractedString is a string (typically a line from a file) that
+     * implements the Comparable interface in terms of an abstract of 
+     * the original string; the abstract is formed by concatenating the
+     * capturing groups of the first regular expression in the pattern
+     * library that matches the original text.
+     * <p>
+     * An AbstractedString may also stand for a line of a MappedLines;
+     * it is then only abstracted when it is first compared, and only
+     * decoded if it is printed or if it contains non-ASCII text.
+     */
+    static class AbstractedString implements Comparable<AbstractedString>, ConsistentWithEquals
+    {
         /**
-         * The original string.
+         * @param original the text.
+         * @param patternSet the patterns that abstract the text.
          */
-        private final String original;
+        AbstractedString(String original, PatternSet patternSet)
+        {
+            this.original   = original;
+            this.lines      = null;
+            this.line       = -1;
+            this.patternSet = patternSet;
+
+            String abstracted = abstractOf(original);
+            this.abstracted = abstracted != null? abstracted: original;
+            this.abstractedKnown = true;
+        }
+
+        /**
+         * @param lines the lines of a mapped file.
+         * @param line the zero-based line number.
+         * @param patternSet the patterns that abstract the line.
+         */
+        AbstractedString(MappedLines lines, int line, PatternSet patternSet)
+        {
+            this.lines      = lines;
+            this.line       = line;
+            this.patternSet = patternSet;
+        }
+
+        /**
+         * The original string; for a mapped line,
+         * this is null until the line is decoded.
+         */
+        private String original;
+
+        /**
+         * The mapped file and line, if any.
+         */
+        private final MappedLines lines;
+        private final int line;
+
+        /**
+         * The patterns that abstract the original string.
+         */
+        private final PatternSet patternSet;
 
         /**
          * The abstract of the original string; this may be
          * the same as the original string, if no pattern
-         * matches the original.
+         * matches the original. For a mapped line that no
+         * pattern matches, this is null, and the line's
+         * bytes are used instead.
          */
-        private final String abstracted;
+        private String abstracted;
+        private boolean abstractedKnown = false;
+
+        /**
+         * The hash code of the abstract, once computed.
+         */
+        private int hash;
+        private boolean hashed = false;
 
         /**
          * Patterns specified in the pattern file loaded by -p patternFile command line option.
          */
-        private static final List<Pattern> patterns = new ArrayList<Pattern>();
+        static final PatternSet patterns = new PatternSet();
+
+        /**
+         * Abstract a line of text.
+         * @param text the text.
+         * @return the capturing groups of the first pattern
+         * that matches the text, or null if none matches.
+         */
+        private String abstractOf(CharSequence text)
+        {
+            return patternSet.abstractOf(text);
+        }
 
         /**
          * @return the original string.
          */
         public String toString()
         {
+            if (original == null) {
+                original = lines.getLine(line);
+            }
+
             return original;
         }
 
+        /**
+         * @return the original text, decoding it only if necessary.
+         */
+        private CharSequence getText()
+        {
+            if (original == null && lines.isAscii(line)) {
+                return lines.getAsciiLine(line);
+            } else {
+                return toString();
+            }
+        }
+
+        /**
+         * @return the abstract of the original text.
+         */
+        private CharSequence getAbstract()
+        {
+            if (!abstractedKnown) {
+                abstracted = abstractOf(getText());
+                abstractedKnown = true;
+            }
+
+            return abstracted != null? abstracted: getText();
+        }
+
         /**
          * Define the Comparable interface as a comparison
          * of the abstracted string contents.
@@ -213,7 +830,62 @@ public class FilterByRegex
         @Override
         public int compareTo(AbstractedString other)
         {
-            return this.abstracted.compareTo(other.abstracted);
+            CharSequence mine   = this.getAbstract();
+            CharSequence theirs = other.getAbstract();
+
+            if (mine == theirs) {
+                return 0;
+            }
+
+            if (mine instanceof String && theirs instanceof String) {
+                return ((String)mine).compareTo((String)theirs);
+            }
+
+            // Compare as String.compareTo() would.
+            int length = Math.min(mine.length(), theirs.length());
+
+            for (int i = 0; i < length; i++) {
+
+                if (mine.charAt(i) != theirs.charAt(i)) {
+                    return mine.charAt(i) - theirs.charAt(i);
+                }
+            }
+
+            return mine.length() - theirs.length();
+        }
+
+        /**
+         * Equality is defined by the abstracted string contents,
+         * consistent with compareTo().
+         */
+        @Override
+        public boolean equals(Object other)
+        {
+            return
+                other instanceof AbstractedString &&
+                this.hashCode() == other.hashCode() &&
+                this.compareTo((AbstractedString)other) == 0;
+        }
+
+        /**
+         * @return the hash code of the abstracted string contents.
+         */
+        @Override
+        public int hashCode()
+        {
+            if (!hashed) {
+                CharSequence key = getAbstract();
+
+                if (key instanceof String) {
+                    hash = key.hashCode();
+                } else {
+                    hash = lines.hashAsciiLine(line);
+                }
+
+                hashed = true;
+            }
+
+            return hash;
         }
     }
 }
@@ -0,0 +1,183 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+/**
+ * HirschbergDiff finds a longest common subsequence in linear space,
+ * using Dan Hirschberg's divide-and-conquer refinement of the LCS
+ * table: it finds where an optimal path crosses the middle row of the
+ * table without storing the table, and then recurses on the two
+ * halves. This takes about twice the time of the full table, but only
+ * O(N+M) memory, so it can compare sequences whose table would not fit
+ * in the heap.
+ * <p>
+ * The path it follows is the one LcsDiff's backtrace takes, so the
+ * edit script is the same as LcsDiff's, even when there are several
+ * minimal scripts. The backtrace works back from the end of the table,
+ * preferring a match, then an insertion, then a removal. So rather
+ * than meeting a forward pass and a reverse pass at the middle row,
+ * one forward pass over the whole table carries, for each cell, the
+ * column at which the backtrace from that cell would reach the middle
+ * row.
+ */
+public class HirschbergDiff implements DiffAlgorithm
+{
+    /**
+     * @see DiffAlgorithm#computeChanges(int[], int[], ChangeSink)
+     */
+    public void computeChanges(int[] sequenceA, int[] sequenceB, ChangeSink changes)
+    {
+        int[] row   = new int[sequenceB.length+1];
+        int[] cross = new int[sequenceB.length+1];
+
+        compare(sequenceA, 0, sequenceA.length, sequenceB, 0, sequenceB.length, changes, row, cross);
+    }
+
+    /**
+     * Compare sequenceA[fromA..toA) with sequenceB[fromB..toB)
+     * and report their changed regions, front to back.
+     * @param row scratch space for a row of the LCS table.
+     * @param cross scratch space for the crossing columns of a row.
+     */
+    private static void compare(
+        int[] sequenceA, int fromA, int toA,
+        int[] sequenceB, int fromB, int toB,
+        ChangeSink changes,
+        int[] row, int[] cross
+        )
+    {
+        if (fromA == toA || fromB == toB) {
+
+            // Nothing in common: everything in A is removed,
+            // and everything in B is inserted.
+            changes.addChange(fromA, toA, fromB, toB);
+
+        } else if (toA - fromA == 1) {
+
+            // A single element in A is either common to some element
+            // of B, or it is replaced; like LcsDiff's backtrace, match
+            // the last occurrence.
+            for (int j = toB - 1; j >= fromB; j--) {
+
+                if (sequenceA[fromA] == sequenceB[j]) {
+                    changes.addChange(fromA, fromA, fromB, j);
+                    changes.addChange(toA, toA, j+1, toB);
+                    return;
+                }
+            }
+
+            changes.addChange(fromA, toA, fromB, toB);
+
+        } else {
+
+            int midA = (fromA + toA) / 2;
+            int midB = fromB + crossing(sequenceA, fromA, midA, toA, sequenceB, fromB, toB, row, cross);
+            DiffStatistics.count(DiffStatistics.Counter.CellsComputed, (long)(toA - fromA) * (toB - fromB));
+
+            compare(sequenceA, fromA, midA, sequenceB, fromB, midB, changes, row, cross);
+            compare(sequenceA, midA, toA, sequenceB, midB, toB, changes, row, cross);
+        }
+    }
+
+    /**
+     * Fill the LCS table of sequenceA[fromA..toA) and
+     * sequenceB[fromB..toB) one row at a time, to find where
+     * the backtrace from its last cell reaches row midA.
+     * @return the column, relative to fromB, at which the backtrace
+     * first reaches row midA; the path passes through that cell.
+     */
+    private static int crossing(
+        int[] sequenceA, int fromA, int midA, int toA,
+        int[] sequenceB, int fromB, int toB,
+        int[] row, int[] cross
+        )
+    {
+        int size = toB - fromB;
+
+        for (int j = 0; j <= size; j++) {
+            row[j] = 0;
+        }
+
+        for (int i = fromA; i < midA; i++) {
+
+            int element = sequenceA[i];
+
+            // The value of the previous row, one column to the left.
+            int diagonal = 0;
+
+            for (int j = 1; j <= size; j++) {
+
+                int above = row[j];
+
+                if (element == sequenceB[fromB+j-1]) {
+                    row[j] = diagonal + 1;
+                } else {
+                    row[j] = Math.max(above, row[j-1]);
+                }
+
+                diagonal = above;
+            }
+        }
+
+        // A backtrace from a cell of row midA is already there.
+        for (int j = 0; j <= size; j++) {
+            cross[j] = j;
+        }
+
+        for (int i = midA; i < toA; i++) {
+
+            int element = sequenceA[i];
+
+            // The values of the previous row, one column to the left;
+            // from column 0, a backtrace can only move up.
+            int diagonal = 0;
+            int diagonalCross = cross[0];
+
+            for (int j = 1; j <= size; j++) {
+
+                int above = row[j];
+                int aboveCross = cross[j];
+
+                // The backtrace's choices: a match, else an insertion
+                // if it's no worse than a removal, else a removal.
+                if (element == sequenceB[fromB+j-1]) {
+                    row[j] = diagonal + 1;
+                    cross[j] = diagonalCross;
+                } else if (row[j-1] >= above) {
+                    row[j] = row[j-1];
+                    cross[j] = cross[j-1];
+                }
+
+                diagonal = above;
+                diagonalCross = aboveCross;
+            }
+        }
+
+        return cross[size];
+    }
+}
@@ -0,0 +1,337 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An IncrementalDiff compares a fixed sequence A with a sequence B
+ * that grows over time, such as the log of a test that's still
+ * running, without starting over each time B grows.
+ * <p>
+ * The session keeps a stable point: a pair of positions, one in each
+ * sequence, before which the edit script is settled. Each update only
+ * compares what follows the stable point -- the new elements of B and
+ * a window of A about twice as long -- and moves the stable point up
+ * to the last run of at least stableRun common elements it finds.
+ * The regions before the new stable point are passed to a sink once,
+ * as they settle; the regions after it are provisional, and are
+ * recomputed by the next update. So the cost of an update is
+ * proportional to the data appended since the stable point, not to
+ * the length of the sequences.
+ * <p>
+ * The edit script is valid, but, as with StreamingDiff, it may not be
+ * minimal: a region settled early can't be revised in the light of
+ * elements appended later. Longer stable runs make that less likely.
+ * A session is not thread-safe.
+ */
+public class IncrementalDiff<T extends Comparable<T>>
+{
+    /**
+     * Begin a session with the default stable run.
+     * @param sequenceA the fixed sequence.
+     * @param algorithm the algorithm that compares each update.
+     */
+    public IncrementalDiff(List<T> sequenceA, DiffAlgorithm algorithm)
+    {
+        this(sequenceA, algorithm, DEFAULT_STABLE_RUN);
+    }
+
+    /**
+     * Begin a session.
+     * @param sequenceA the fixed sequence.
+     * @param algorithm the algorithm that compares each update.
+     * @param stableRun the number of common elements that
+     * must follow a region before it's considered settled.
+     */
+    public IncrementalDiff(List<T> sequenceA, DiffAlgorithm algorithm, int stableRun)
+    {
+        this.sequenceA  = sequenceA;
+        this.algorithm  = algorithm;
+        this.stableRun  = Math.max(1, stableRun);
+
+        long start = DiffStatistics.start();
+        this.idsA       = tokens.intern(sequenceA);
+        DiffStatistics.stop(DiffStatistics.Phase.Intern, start);
+    }
+
+    /**
+     * The default number of common elements that settle the regions before them.
+     */
+    public static final int DEFAULT_STABLE_RUN = 8;
+
+    /**
+     * The number of elements of A beyond twice the length of
+     * B's unsettled elements that an update compares.
+     */
+    private static final int WINDOW_SLACK = 256;
+
+    private final List<T> sequenceA;
+    private final DiffAlgorithm algorithm;
+    private final int stableRun;
+
+    private final TokenTable<T> tokens = new TokenTable<T>();
+    private final int[] idsA;
+
+    /**
+     * Sequence B so far, and its ids.
+     */
+    private final List<T> sequenceB = new ArrayList<T>();
+    private int[] idsB = new int[1024];
+
+    /**
+     * The stable point; the edit script is settled before it.
+     */
+    private int stableA = 0;
+    private int stableB = 0;
+
+    /**
+     * The number of differences settled so far.
+     */
+    private int settledDifferences = 0;
+
+    /**
+     * The edit script of the last update, and the first of its runs
+     * that's not settled; null if B hasn't been compared yet.
+     */
+    private EditScript pending = null;
+    private int pendingRun = 0;
+
+    /**
+     * The length of B when it was last compared.
+     */
+    private int comparedB = 0;
+
+    /**
+     * True once B is complete.
+     */
+    private boolean finished = false;
+
+    /**
+     * Append an element to sequence B.
+     * @param element the element.
+     */
+    public void append(T element)
+    {
+        if (finished) {
+            throw new IllegalStateException("The session is finished");
+        }
+
+        int index = sequenceB.size();
+
+        if (index == idsB.length) {
+            idsB = Arrays.copyOf(idsB, index * 2);
+        }
+
+        sequenceB.add(element);
+        idsB[index] = tokens.intern(element);
+    }
+
+    /**
+     * Append elements to sequence B.
+     * @param elements the elements.
+     */
+    public void append(List<T> elements)
+    {
+        for (T element: elements) {
+            append(element);
+        }
+    }
+
+    /**
+     * @return sequence B as appended so far.
+     */
+    public List<T> getSequenceB()
+    {
+        return Collections.unmodifiableList(sequenceB);
+    }
+
+    /**
+     * @return the number of differences settled so far.
+     */
+    public int getSettledDifferences()
+    {
+        return settledDifferences;
+    }
+
+    /**
+     * Compare the elements appended since the stable point, and pass
+     * the regions that settle as a result to a sink.
+     * @param regions the sink that receives the settled regions, front to back.
+     * @return the number of differences settled by this update.
+     * @throws IOException if the sink fails.
+     */
+    public int update(RegionSink regions)
+    throws IOException
+    {
+        if (finished) {
+            throw new IllegalStateException("The session is finished");
+        }
+
+        if (sequenceB.size() == comparedB) {
+            return 0;
+        }
+
+        int toB = sequenceB.size();
+        int toA = (int)Math.min(idsA.length, stableA + 2L * (toB - stableB) + WINDOW_SLACK);
+        compare(toA, toB);
+
+        // Find the last run of stableRun common elements: the change
+        // that follows it, or the end of the window, is the new stable
+        // point. A common run is the gap between one change and the next.
+        int endA = stableA;
+        int endB = stableB;
+        int settledRuns = 0;
+        int newStableA = stableA;
+        int newStableB = stableB;
+
+        for (int run = 0; run < pending.size(); run++) {
+            int startA = pending.getStartA(run);
+            int startB = pending.getStartB(run);
+
+            if (startA - endA >= stableRun) {
+                settledRuns = run;
+                newStableA  = startA;
+                newStableB  = startB;
+            }
+
+            if (pending.isRemove(run)) {
+                endA = startA + pending.getLength(run);
+                endB = startB;
+            } else {
+                endA = startA;
+                endB = startB + pending.getLength(run);
+            }
+        }
+
+        if (toA - endA == toB - endB && toB - endB >= stableRun) {
+            settledRuns = pending.size();
+            newStableA  = toA;
+            newStableB  = toB;
+        }
+
+        int settled = settle(settledRuns, regions);
+        stableA = newStableA;
+        stableB = newStableB;
+
+        return settled;
+    }
+
+    /**
+     * Pass the provisional regions found by the last update, those
+     * after the stable point, to a sink. They're not settled, and
+     * the next update may replace them.
+     * @param regions the sink that receives the provisional regions.
+     * @return the number of provisional differences.
+     * @throws IOException if the sink fails.
+     */
+    public int emitPending(RegionSink regions)
+    throws IOException
+    {
+        if (pending == null) {
+            return 0;
+        }
+
+        pending.emitRegions(sequenceA, sequenceB, regions, pendingRun, pending.size());
+        return countDifferences(pendingRun, pending.size());
+    }
+
+    /**
+     * Declare sequence B complete: compare everything after the
+     * stable point, and pass the rest of the regions to a sink.
+     * @param regions the sink that receives the remaining regions, front to back.
+     * @return the total number of differences.
+     * @throws IOException if the sink fails.
+     */
+    public int finish(RegionSink regions)
+    throws IOException
+    {
+        if (!finished) {
+            compare(idsA.length, sequenceB.size());
+            settle(pending.size(), regions);
+            pending = null;
+            stableA = idsA.length;
+            stableB = sequenceB.size();
+            finished = true;
+        }
+
+        return settledDifferences;
+    }
+
+    /**
+     * Compare the sequences from the stable point up to a pair of positions.
+     */
+    private void compare(int toA, int toB)
+    {
+        long start = DiffStatistics.start();
+        pending = new EditScript();
+        pendingRun = 0;
+        comparedB = toB;
+
+        DiffEngine.computeChanges(
+            Arrays.copyOfRange(idsA, stableA, toA),
+            Arrays.copyOfRange(idsB, stableB, toB),
+            algorithm,
+            new RebasingChangeSink(pending, stableA, stableB)
+        );
+        DiffStatistics.stop(DiffStatistics.Phase.Compute, start);
+    }
+
+    /**
+     * Pass the pending runs up to a run to a sink, as settled.
+     * @return the number of differences settled.
+     */
+    private int settle(int toRun, RegionSink regions)
+    throws IOException
+    {
+        pending.emitRegions(sequenceA, sequenceB, regions, pendingRun, toRun);
+
+        int settled = countDifferences(pendingRun, toRun);
+        settledDifferences += settled;
+        pendingRun = toRun;
+        DiffStatistics.count(DiffStatistics.Counter.Differences, settled);
+
+        return settled;
+    }
+
+    private int countDifferences(int fromRun, int toRun)
+    {
+        int count = 0;
+
+        for (int run = fromRun; run < toRun; run++) {
+            count += pending.getLength(run);
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,151 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.util.Arrays;
+
+/**
+ * An IntTokenTable is a TokenTable for int values: it assigns each
+ * distinct value a dense id, so that sequences of arbitrary ints,
+ * such as precomputed hashes of lines, can be handed to a
+ * DiffAlgorithm. Values are kept in an open-addressed table
+ * of primitive arrays, so nothing is boxed.
+ */
+class IntTokenTable
+{
+    /**
+     * The table's slots; each holds a value and its id,
+     * or an id of -1 if it's empty. The length is a power of two.
+     */
+    private int[] values = new int[64];
+    private int[] ids = newIds(64);
+
+    /**
+     * The number of distinct values interned.
+     */
+    private int size = 0;
+
+    private static int[] newIds(int capacity)
+    {
+        int[] result = new int[capacity];
+        Arrays.fill(result, -1);
+        return result;
+    }
+
+    /**
+     * Intern a sequence of values. Values equal to values
+     * of previously interned sequences get the same id.
+     * @param sequence the values.
+     * @return the sequence of value ids.
+     */
+    public int[] intern(int[] sequence)
+    {
+        int[] result = new int[sequence.length];
+
+        for (int i = 0; i < sequence.length; i++) {
+            result[i] = intern(sequence[i]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Intern a value.
+     * @param value the value.
+     * @return the value's id.
+     */
+    public int intern(int value)
+    {
+        int mask = values.length - 1;
+        int slot = mix(value) & mask;
+
+        while (ids[slot] >= 0) {
+
+            if (values[slot] == value) {
+                return ids[slot];
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        values[slot] = value;
+        ids[slot] = size;
+
+        if (++size * 2 > values.length) {
+            grow();
+        }
+
+        return size - 1;
+    }
+
+    /**
+     * @return the number of distinct values interned.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Spread a value's bits, so that values that differ only in
+     * their high bits don't collide in the low bits of the slot.
+     */
+    private static int mix(int value)
+    {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Double the table, keeping it no more than half full.
+     */
+    private void grow()
+    {
+        int[] oldValues = values;
+        int[] oldIds = ids;
+
+        values = new int[oldValues.length * 2];
+        ids = newIds(values.length);
+
+        int mask = values.length - 1;
+
+        for (int i = 0; i < oldValues.length; i++) {
+
+            if (oldIds[i] >= 0) {
+                int slot = mix(oldValues[i]) & mask;
+
+                while (ids[slot] >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+
+                values[slot] = oldValues[i];
+                ids[slot] = oldIds[i];
+            }
+        }
+    }
+}
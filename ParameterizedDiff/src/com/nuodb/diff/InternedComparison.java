@@ -0,0 +1,202 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An InternedComparison is the part of a comparison that works on
+ * interned ids, shared by DiffEngine and PrimitiveDiffEngine: it
+ * computes the edit script on first use and keeps it, and derives
+ * the Differences, the coalesced regions and the count from it.
+ * The engines differ only in how they intern their elements, and
+ * in how cheaply they can tell that the sequences are identical.
+ */
+abstract class InternedComparison
+{
+    /**
+     * @param contentA the first sequence, the source of removed content.
+     * @param contentB the second sequence, the source of inserted content.
+     * @param algorithm the algorithm that compares them.
+     */
+    InternedComparison(List<?> contentA, List<?> contentB, DiffAlgorithm algorithm)
+    {
+        this.contentA   = contentA;
+        this.contentB   = contentB;
+        this.algorithm  = algorithm;
+    }
+
+    private final List<?> contentA;
+    private final List<?> contentB;
+    private final DiffAlgorithm algorithm;
+
+    /**
+     * Counts the differences when the algorithm finds minimal edit scripts.
+     */
+    private DistanceCounter counter = new MyersDiff();
+
+    /**
+     * The ids of the sequences, interned on first use.
+     */
+    private int[][] ids;
+
+    /**
+     * The edit script, computed on first use.
+     */
+    private EditScript script;
+
+    /**
+     * The element-by-element differences, generated on first use.
+     */
+    private List<Difference> differences;
+
+    /**
+     * Intern the sequences; this is called at most once.
+     * @return the ids of sequence A and of sequence B.
+     */
+    protected abstract int[][] intern();
+
+    /**
+     * Are the sequences identical? This is only asked before the
+     * edit script is computed; by default, the ids are compared.
+     */
+    protected boolean isIdentical()
+    {
+        int[][] ids = getIds();
+        return Arrays.equals(ids[0], ids[1]);
+    }
+
+    /**
+     * @see DiffEngine#setDistanceCounter(DistanceCounter)
+     */
+    void setDistanceCounter(DistanceCounter counter)
+    {
+        this.counter = counter;
+    }
+
+    private int[][] getIds()
+    {
+        if (ids == null) {
+            ids = intern();
+        }
+
+        return ids;
+    }
+
+    /**
+     * @see DiffEngine#getEditScript()
+     */
+    EditScript getEditScript()
+    {
+        if (script == null) {
+            EditScript result = new EditScript();
+            compare(result);
+            script = result;
+        }
+
+        return script;
+    }
+
+    /**
+     * @see DiffEngine#getDifferences()
+     */
+    List<Difference> getDifferences()
+    {
+        if (differences == null) {
+            EditScript edits = getEditScript();
+
+            long start = DiffStatistics.start();
+            differences = edits.getDifferences(contentA, contentB);
+            DiffStatistics.stop(DiffStatistics.Phase.Build, start);
+        }
+
+        return differences;
+    }
+
+    /**
+     * @see DiffEngine#emitRegions(RegionSink)
+     */
+    int emitRegions(RegionSink regions)
+    throws IOException
+    {
+        if (script == null) {
+            // Pass each region on as soon as the algorithm reports
+            // it, rather than once the whole comparison is done.
+            EditScript result = new EditScript(contentA, contentB, regions);
+
+            try {
+                compare(result);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            result.endRegions();
+            script = result;
+        } else {
+            script.emitRegions(contentA, contentB, regions);
+        }
+
+        return script.getDifferenceCount();
+    }
+
+    /**
+     * @see DiffEngine#countDifferences(int)
+     */
+    int countDifferences(int limit)
+    {
+        if (script == null && contentA.size() == contentB.size() && isIdentical()) {
+            return 0;
+        }
+
+        if (script != null || !DiffEngine.isMinimal(algorithm)) {
+            return (int)Math.min(getEditScript().getDifferenceCount(), (long)limit + 1);
+        }
+
+        int[][] ids = getIds();
+
+        long start = DiffStatistics.start();
+        int count = counter.countDifferences(ids[0], ids[1], limit);
+        DiffStatistics.stop(DiffStatistics.Phase.Compute, start);
+
+        return count;
+    }
+
+    /**
+     * Compute the edit script into a new EditScript.
+     */
+    private void compare(EditScript result)
+    {
+        int[][] ids = getIds();
+        DiffEngine.computeChanges(ids[0], ids[1], algorithm, result);
+        DiffStatistics.count(DiffStatistics.Counter.Differences, result.getDifferenceCount());
+    }
+}
@@ -0,0 +1,235 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * LcsDiff computes a longest common subsequence matrix for
+ * two sequences of elements, and backtracks through that
+ * matrix to find the edit operations that transform
+ * sequenceA into sequenceB. It needs O(N*M) time and space;
+ * when the matrix would exceed its memory budget, it falls
+ * back to HirschbergDiff, which needs only O(N+M) space.
+ * Large tables are filled in parallel by a WavefrontLcs;
+ * the table, and so the edit script, is the same either way.
+ */
+public class LcsDiff implements DiffAlgorithm
+{
+    /**
+     * Construct an LcsDiff whose table may use up to
+     * a quarter of the maximum heap size.
+     */
+    public LcsDiff()
+    {
+        this(DEFAULT_TABLE_BUDGET);
+    }
+
+    /**
+     * Construct an LcsDiff with an explicit memory budget.
+     * @param tableBudget the maximum size, in bytes, of the LCS table.
+     */
+    public LcsDiff(long tableBudget)
+    {
+        this(tableBudget, DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Construct an LcsDiff with an explicit memory budget
+     * and parallelism threshold.
+     * @param tableBudget the maximum size, in bytes, of the LCS table.
+     * @param parallelThreshold the number of table cells at which
+     * the table is filled in parallel; Long.MAX_VALUE disables
+     * parallel computation.
+     */
+    public LcsDiff(long tableBudget, long parallelThreshold)
+    {
+        this.tableBudget        = tableBudget;
+        this.parallelThreshold  = parallelThreshold;
+    }
+
+    /**
+     * The default table budget: a quarter of the heap.
+     */
+    public static final long DEFAULT_TABLE_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+
+    /**
+     * The default parallelism threshold: below about four million
+     * cells, the table fills faster than tasks can be scheduled.
+     * With a single processor, tables are never filled in parallel.
+     */
+    public static final long DEFAULT_PARALLEL_THRESHOLD = Runtime.getRuntime().availableProcessors() > 1? 1L << 22: Long.MAX_VALUE;
+
+    /**
+     * The maximum size, in bytes, of the LCS table.
+     */
+    private final long tableBudget;
+
+    /**
+     * The number of table cells at which the table is filled in parallel.
+     */
+    private final long parallelThreshold;
+
+    /**
+     * Estimate the size of the LCS table for two sequences.
+     * @return the approximate size of the table, in bytes.
+     */
+    public static long estimateTableSize(int sizeA, int sizeB)
+    {
+        return 4L * (sizeA + 1) * (sizeB + 1);
+    }
+
+    /**
+     * @see DiffAlgorithm#computeChanges(int[], int[], ChangeSink)
+     */
+    public void computeChanges(int[] sequenceA, int[] sequenceB, ChangeSink changes)
+    {
+        if (estimateTableSize(sequenceA.length, sequenceB.length) > tableBudget) {
+            new HirschbergDiff().computeChanges(sequenceA, sequenceB, changes);
+            return;
+        }
+
+        long start = DiffStatistics.start();
+        int[][] lcs;
+
+        if ((long)sequenceA.length * sequenceB.length >= parallelThreshold) {
+            lcs = new WavefrontLcs(ForkJoinPool.commonPool(), WavefrontLcs.tileSizeFor(parallelThreshold)).computeLcs(sequenceA, sequenceB);
+        } else {
+            lcs = computeLcs(sequenceA, sequenceB);
+        }
+
+        DiffStatistics.stop(DiffStatistics.Phase.Fill, start);
+        start = DiffStatistics.start();
+        backtrace(sequenceA, sequenceB, lcs).replay(sequenceA.length, sequenceB.length, changes);
+        DiffStatistics.stop(DiffStatistics.Phase.Backtrace, start);
+    }
+
+    /**
+     * Compute the longest common subsequence of the two sequences
+     * by computing the longest common subsequences of the prefixes
+     * a[1..i],b[1..j] for 0 &lt; 1 &lt; size(a), 0 &lt; j &lt; size(b).
+     * Note that the algorithm uses one-based addressing.
+     * @return the longest common subsequence of the two sequences,
+     * encoded as a matrix of longest common subsequences
+     * of prefixes to the two sequences.
+     */
+    static int[][] computeLcs(int[] sequenceA, int[] sequenceB)
+    {
+        // The 0th row and column are the initial conditions,
+        // which are are initialized to 0 by side effect.
+        int[][] lcs = new int[sequenceA.length+1][sequenceB.length+1];
+
+        fillLcs(sequenceA, 0, sequenceA.length, sequenceB, 0, sequenceB.length, lcs);
+
+        return lcs;
+    }
+
+    /**
+     * Fill in a rectangle of the LCS matrix: the rows for
+     * sequenceA[fromA..toA) and the columns for sequenceB[fromB..toB).
+     * The rectangle's top row and left column must already be filled.
+     */
+    static void fillLcs(int[] sequenceA, int fromA, int toA, int[] sequenceB, int fromB, int toB, int[][] lcs)
+    {
+        DiffStatistics.count(DiffStatistics.Counter.CellsComputed, (long)(toA - fromA) * (toB - fromB));
+
+        for (int i = fromA; i < toA; i++) {
+
+            for (int j = fromB; j < toB; j++) {
+
+                if (sequenceA[i] == sequenceB[j]) {
+                    // The subsequence extends to the ith and jth 
+                    // positions of the respective strings.
+                    lcs[i+1][j+1] = lcs[i][j] + 1;
+                } else {
+                    // The longest subsequence at the ith and jth
+                    // positions is the longest of the two subsequences
+                    // of the prefixes sequenceA[1..i-1], sequenceB[1..j-1].
+                    lcs[i+1][j+1] = Math.max(lcs[i][j+1], lcs[i+1][j]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Backtrace the LCS matrix and collect the elements common to
+     * both sequences; the gaps between them are the edit operations
+     * that will transform sequence A to sequence B. Note that the results
+     * generated by this algorithm are not necessarily the only valid sequence.
+     * @return the common elements.
+     */
+    static CommonRuns backtrace(int[] sequenceA, int[] sequenceB, int[][] lcs)
+    {
+        CommonRuns common = new CommonRuns();
+
+        // Process the two sequences back-to-front to operate on
+        // progressive prefixes.
+        int i = sequenceA.length;
+        int j = sequenceB.length;
+
+        while (i > 0 || j > 0) {
+
+            if (i > 0 && j > 0 && sequenceA[i-1] == sequenceB[j-1]) {
+
+                // This element is common to both sequences, no editing required.
+                common.addMatch(i-1, j-1);
+                i--;
+                j--;
+
+            } else if (j > 0 && (i == 0 || lcs[i][j-1] >= lcs[i-1][j])) {
+
+                // This element is not common to both prefixes a[1..i],b[1..j],
+                // so we have to edit it and continue searching prefixes
+                // a[1..i],b[1..j-1] or a[1..i-1],b[1..j].  The LCS of a[1..i],b[1..j-1]
+                // is at least as long as the LCS of the prefixes a[1..i-1],b[1..j],
+                // so continuing with prefixes a[1..i],b[1..j-1] is valid;
+                // this would remove the element from sequence b, but by convention
+                // we're emitting edits to change sequence a to sequence b, 
+                // so the edit operation generated is an insert.
+                j--;
+
+            } else {
+
+                // This condition is known to hold, because:
+                // - At least one of i and j is > 0.
+                // - If i were 0, then j must be > 0 and the branch above would be taken.
+                //   Therefore, i is > 0.
+                // - If j is not zero, and since we know i is not zero: lcs[i][j-1] >= lcs[i-1][j]
+                //   must be false or the branch above would be taken.
+                //   Its inverse, lcs[i][j-1] < lcs[i-1][j], is therefore true.
+                // - Therefore, either j is zero or lcs[i][j-1] < lcs[i-1][j]) is true.
+                assert (i > 0 && (j == 0 || lcs[i][j-1] < lcs[i-1][j]));
+
+                // This element is removed from sequence a.
+                i--;
+            }
+        }
+
+        return common;
+    }
+}
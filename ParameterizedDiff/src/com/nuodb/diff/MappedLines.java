@@ -0,0 +1,306 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * MappedLines presents a text file as a sequence of lines without
+ * reading it onto the heap: the file is memory-mapped, and each line
+ * is recorded as an (offset, length) span of the mapping. A line is
+ * decoded, as UTF-8, only when a caller asks for it as a String;
+ * lines of pure ASCII can also be hashed, compared, and matched
+ * against regular expressions directly from the mapped bytes.
+ * <p>
+ * Line terminators are those recognized by BufferedReader.readLine():
+ * a line feed, a carriage return, or a carriage return followed
+ * immediately by a line feed.
+ */
+public class MappedLines
+{
+    /**
+     * Map a file and find its line boundaries.
+     * @param filePath a path to the file.
+     * @throws IOException if the file can't be mapped, or if
+     * a single line is longer than a mapping segment.
+     */
+    public MappedLines(String filePath)
+    throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(filePath, "r");
+
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            long position = 0;
+
+            while (position < size) {
+
+                long remaining = size - position;
+                int  length = (int)Math.min(remaining, SEGMENT_SIZE);
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+                // Unless this is the end of the file, end the segment after its
+                // last line feed, so no line straddles two segments.
+                if (length < remaining) {
+
+                    while (length > 0 && segment.get(length-1) != '\n') {
+                        length--;
+                    }
+
+                    if (length == 0) {
+                        throw new IOException(String.format("%s has a line longer than %d bytes", filePath, SEGMENT_SIZE));
+                    }
+                }
+
+                addSegment(segment, length);
+                position += length;
+            }
+        } finally {
+            // The mappings remain valid after the file is closed.
+            file.close();
+        }
+    }
+
+    /**
+     * The largest region of the file mapped as one buffer.
+     */
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    /**
+     * The mapped segments of the file, and the
+     * index of the first line in each segment.
+     */
+    private ByteBuffer[] segments = new ByteBuffer[0];
+    private int[] segmentFirstLine = new int[0];
+
+    /**
+     * The span of each line within its segment.
+     */
+    private int[] starts = new int[1024];
+    private int[] lengths = new int[1024];
+    private int   lineCount = 0;
+
+    /**
+     * Lines that contain bytes outside the ASCII range, which
+     * must be decoded before they can be treated as text.
+     */
+    private final BitSet nonAscii = new BitSet();
+
+    /**
+     * Record the lines of a segment.
+     */
+    private void addSegment(ByteBuffer segment, int length)
+    {
+        segments = Arrays.copyOf(segments, segments.length + 1);
+        segments[segments.length-1] = segment;
+        segmentFirstLine = Arrays.copyOf(segmentFirstLine, segmentFirstLine.length + 1);
+        segmentFirstLine[segmentFirstLine.length-1] = lineCount;
+
+        int     lineStart = 0;
+        boolean ascii = true;
+
+        for (int i = 0; i < length; i++) {
+
+            byte b = segment.get(i);
+
+            if (b == '\n' || b == '\r') {
+                addLine(lineStart, i - lineStart, ascii);
+
+                if (b == '\r' && i+1 < length && segment.get(i+1) == '\n') {
+                    i++;
+                }
+
+                lineStart = i + 1;
+                ascii = true;
+
+            } else if (b < 0) {
+                ascii = false;
+            }
+        }
+
+        if (lineStart < length) {
+            // The last line of the file need not be terminated.
+            addLine(lineStart, length - lineStart, ascii);
+        }
+    }
+
+    private void addLine(int start, int length, boolean ascii)
+    {
+        if (lineCount == starts.length) {
+            starts  = Arrays.copyOf(starts, lineCount * 2);
+            lengths = Arrays.copyOf(lengths, lineCount * 2);
+        }
+
+        if (!ascii) {
+            nonAscii.set(lineCount);
+        }
+
+        starts[lineCount]  = start;
+        lengths[lineCount] = length;
+        lineCount++;
+    }
+
+    /**
+     * Find the segment that holds a line.
+     */
+    private ByteBuffer segmentOf(int line)
+    {
+        int segment = Arrays.binarySearch(segmentFirstLine, line);
+
+        if (segment < 0) {
+            // Not the first line of a segment; it's in the segment
+            // before the insertion point.
+            segment = -segment - 2;
+        }
+
+        return segments[segment];
+    }
+
+    /**
+     * @return the number of lines in the file.
+     */
+    public int size()
+    {
+        return lineCount;
+    }
+
+    /**
+     * @return true if the line is pure ASCII.
+     */
+    public boolean isAscii(int line)
+    {
+        return !nonAscii.get(line);
+    }
+
+    /**
+     * Decode a line.
+     * @param line the zero-based line number.
+     * @return the line's text, without its terminator.
+     */
+    public String getLine(int line)
+    {
+        ByteBuffer segment = segmentOf(line);
+        byte[] bytes = new byte[lengths[line]];
+
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = segment.get(starts[line] + i);
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Present an ASCII line as text without decoding it.
+     * @param line the zero-based line number, which must be pure ASCII.
+     * @return a view of the line's bytes as characters.
+     */
+    public CharSequence getAsciiLine(int line)
+    {
+        assert isAscii(line);
+        return new AsciiSpan(segmentOf(line), starts[line], lengths[line]);
+    }
+
+    /**
+     * Hash an ASCII line without decoding it.
+     * @param line the zero-based line number, which must be pure ASCII.
+     * @return the hash code of the line's text, as String.hashCode() would compute it.
+     */
+    public int hashAsciiLine(int line)
+    {
+        assert isAscii(line);
+        ByteBuffer segment = segmentOf(line);
+        int hash = 0;
+
+        for (int i = starts[line], end = starts[line] + lengths[line]; i < end; i++) {
+            hash = 31 * hash + segment.get(i);
+        }
+
+        return hash;
+    }
+
+    /**
+     * An AsciiSpan is a CharSequence view of a span of ASCII bytes.
+     */
+    private static class AsciiSpan implements CharSequence
+    {
+        AsciiSpan(ByteBuffer segment, int start, int length)
+        {
+            this.segment    = segment;
+            this.start      = start;
+            this.length     = length;
+        }
+
+        private final ByteBuffer segment;
+        private final int start;
+        private final int length;
+
+        public int length()
+        {
+            return length;
+        }
+
+        public char charAt(int index)
+        {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException(Integer.toString(index));
+            }
+
+            return (char)segment.get(start + index);
+        }
+
+        public CharSequence subSequence(int from, int to)
+        {
+            if (from < 0 || to > length || from > to) {
+                throw new IndexOutOfBoundsException(String.format("%d..%d", from, to));
+            }
+
+            return new AsciiSpan(segment, start + from, to - from);
+        }
+
+        public String toString()
+        {
+            char[] chars = new char[length];
+
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char)segment.get(start + i);
+            }
+
+            return new String(chars);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MyersDiff implements the greedy algorithm from Eugene Myers'
+ * "An O(ND) Difference Algorithm and Its Variations." It explores
+ * the edit graph one edit at a time, following runs of common
+ * elements ("snakes") for free, so its cost is O((N+M)*D) where D
+ * is the size of the minimal edit script. When the two sequences
+ * are nearly identical this is far cheaper than filling in the
+ * whole N*M longest common subsequence table.
+ * <p>
+ * Backtracking needs the state of every round, which is O(D*D)
+ * space; when that would exceed its memory budget, it falls back
+ * to HirschbergDiff, which needs only O(N+M) space.
+ */
+public class MyersDiff implements DiffAlgorithm, DistanceCounter
+{
+    /**
+     * Construct a MyersDiff whose trace may use up to
+     * a quarter of the maximum heap size.
+     */
+    public MyersDiff()
+    {
+        this(LcsDiff.DEFAULT_TABLE_BUDGET);
+    }
+
+    /**
+     * Construct a MyersDiff with an explicit memory budget.
+     * @param traceBudget the maximum size, in bytes, of the trace of rounds.
+     */
+    public MyersDiff(long traceBudget)
+    {
+        this.traceBudget = traceBudget;
+    }
+
+    /**
+     * The maximum size, in bytes, of the trace of rounds.
+     */
+    private final long traceBudget;
+
+    /**
+     * @see DiffAlgorithm#computeChanges(int[], int[], ChangeSink)
+     */
+    public void computeChanges(int[] sequenceA, int[] sequenceB, ChangeSink changes)
+    {
+        int n = sequenceA.length;
+        int m = sequenceB.length;
+        int max = n + m;
+
+        // v[k + offset] is the furthest-reaching x coordinate on diagonal k,
+        // where diagonal k is the set of points with x - y == k. The array is
+        // padded by one entry on each side so the k-1 and k+1 probes are safe.
+        int offset = max + 1;
+        int[] v = new int[2 * max + 3];
+
+        // Snapshots of v after each round, used to backtrack the path;
+        // round d only touches diagonals -d..d, so only those are kept.
+        List<int[]> trace = new ArrayList<int[]>();
+        long traceSize = 0;
+
+        for (int d = 0; d <= max; d++) {
+
+            for (int k = -d; k <= d; k += 2) {
+
+                // Extend the path from whichever neighbouring diagonal
+                // reaches furthest: down from k+1 (an insert) or right
+                // from k-1 (a remove).
+                int x;
+
+                if (k == -d || (k != d && v[offset+k-1] < v[offset+k+1])) {
+                    x = v[offset+k+1];
+                } else {
+                    x = v[offset+k-1] + 1;
+                }
+
+                int y = x - k;
+
+                // Follow the snake of common elements.
+                while (x < n && y < m && sequenceA[x] == sequenceB[y]) {
+                    x++;
+                    y++;
+                }
+
+                v[offset+k] = x;
+
+                if (x >= n && y >= m) {
+                    trace.add(snapshot(v, offset, d));
+                    backtrack(trace, n, m).replay(n, m, changes);
+                    return;
+                }
+            }
+
+            // Round d+1 would take the trace to (d+2)^2 ints.
+            traceSize += 4L * (2 * d + 1);
+
+            if (traceSize + 4L * (2 * d + 3) > traceBudget) {
+                new HirschbergDiff().computeChanges(sequenceA, sequenceB, changes);
+                return;
+            }
+
+            trace.add(snapshot(v, offset, d));
+        }
+
+        throw new IllegalStateException("edit graph exhausted without reaching its end");
+    }
+
+    /**
+     * @see DistanceCounter#countDifferences(int[], int[], int)
+     */
+    public int countDifferences(int[] sequenceA, int[] sequenceB, int limit)
+    {
+        return distance(sequenceA, sequenceB, limit);
+    }
+
+    /**
+     * Compute the size of the minimal edit script -- the number of
+     * elements removed plus the number inserted -- without recording
+     * the script, giving up as soon as it's known to exceed a limit.
+     * Round d only explores the diagonals -d..d, so capping the rounds
+     * confines the search to a band of 2*limit+1 diagonals around the
+     * main diagonal, as in Ukkonen's cutoff: the cost is O((N+M)*L)
+     * time and O(L) space, where L is the lesser of D and the limit.
+     * @param sequenceA the first sequence.
+     * @param sequenceB the second sequence.
+     * @param limit the largest distance of interest.
+     * @return the size of the minimal edit script, or limit+1
+     * if it's greater than limit.
+     */
+    public static int distance(int[] sequenceA, int[] sequenceB, int limit)
+    {
+        int n = sequenceA.length;
+        int m = sequenceB.length;
+
+        // Every element of the longer sequence beyond the length
+        // of the shorter one must be inserted or removed.
+        if (Math.abs(n - m) > limit) {
+            return limit + 1;
+        }
+
+        int max = (int)Math.min(limit, (long)n + m);
+        int offset = max + 1;
+        int[] v = new int[2 * max + 3];
+
+        for (int d = 0; d <= max; d++) {
+
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+
+                if (k == -d || (k != d && v[offset+k-1] < v[offset+k+1])) {
+                    x = v[offset+k+1];
+                } else {
+                    x = v[offset+k-1] + 1;
+                }
+
+                int y = x - k;
+
+                while (x < n && y < m && sequenceA[x] == sequenceB[y]) {
+                    x++;
+                    y++;
+                }
+
+                v[offset+k] = x;
+
+                if (x >= n && y >= m) {
+                    return d;
+                }
+            }
+        }
+
+        // The end of the edit graph is further than limit edits away.
+        return limit + 1;
+    }
+
+    /**
+     * Copy the diagonals -d..d of the working vector.
+     */
+    private static int[] snapshot(int[] v, int offset, int d)
+    {
+        int[] result = new int[2 * d + 1];
+        System.arraycopy(v, offset - d, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Walk the recorded rounds back from the end of the edit graph,
+     * collecting the snakes that make up the path.
+     * @param trace the snapshots of each round.
+     * @param n the size of sequence A.
+     * @param m the size of sequence B.
+     * @return the common elements along the path.
+     */
+    private static CommonRuns backtrack(List<int[]> trace, int n, int m)
+    {
+        CommonRuns common = new CommonRuns();
+
+        int x = n;
+        int y = m;
+
+        for (int d = trace.size() - 1; d > 0; d--) {
+
+            // The path arrived at diagonal k in round d from
+            // diagonal prevK as it stood after round d-1.
+            int[] previous = trace.get(d-1);
+            int   k = x - y;
+            int   prevK;
+
+            if (k == -d || (k != d && previous[k-1 + d-1] < previous[k+1 + d-1])) {
+                prevK = k + 1;
+            } else {
+                prevK = k - 1;
+            }
+
+            int prevX = previous[prevK + d-1];
+            int prevY = prevX - prevK;
+
+            // The snake following the edit.
+            while (x > prevX && y > prevY) {
+                common.addMatch(x-1, y-1);
+                x--;
+                y--;
+            }
+
+            // Step back over the edit itself.
+            x = prevX;
+            y = prevY;
+        }
+
+        // Whatever remains is the initial snake from the origin.
+        while (x > 0 && y > 0) {
+            common.addMatch(x-1, y-1);
+            x--;
+            y--;
+        }
+
+        return common;
+    }
+}
@@ -0,0 +1,397 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.util.Arrays;
+
+/**
+ * PatienceDiff splits a large comparison into many small ones by
+ * anchoring on elements that occur rarely in both sequences, in the
+ * style of Bram Cohen's patience diff and JGit's histogram diff.
+ * <ul>
+ * <li>Elements that occur exactly once in each sequence are matched,
+ * and the longest increasing subsequence of those matches becomes a
+ * set of anchors; the gaps between anchors are compared recursively.
+ * <li>If a gap has no such unique elements, the longest common run
+ * through its least frequent common element becomes the anchor.
+ * <li>Gaps that are small, or that have no usable anchor, are
+ * compared by a core DiffAlgorithm.
+ * </ul>
+ * Repetitive content such as blank lines and separators never
+ * anchors a match, so changes line up with the distinctive lines
+ * around them, and the core algorithm only sees tiny problems.
+ * The resulting edit script is not necessarily minimal.
+ */
+public class PatienceDiff implements DiffAlgorithm
+{
+    /**
+     * Construct a PatienceDiff that compares small gaps with an LcsDiff.
+     */
+    public PatienceDiff()
+    {
+        this(new LcsDiff());
+    }
+
+    /**
+     * Construct a PatienceDiff.
+     * @param core the algorithm that compares small gaps.
+     */
+    public PatienceDiff(DiffAlgorithm core)
+    {
+        this(core, DEFAULT_SMALL_GAP_CELLS);
+    }
+
+    /**
+     * Construct a PatienceDiff.
+     * @param core the algorithm that compares small gaps.
+     * @param smallGapCells gaps whose LCS table would have no
+     * more than this many cells are compared by the core algorithm.
+     */
+    public PatienceDiff(DiffAlgorithm core, long smallGapCells)
+    {
+        this.core           = core;
+        this.smallGapCells  = smallGapCells;
+    }
+
+    /**
+     * The default size of a small gap.
+     */
+    public static final long DEFAULT_SMALL_GAP_CELLS = 1 << 16;
+
+    /**
+     * The algorithm that compares small gaps.
+     */
+    private final DiffAlgorithm core;
+
+    /**
+     * Gaps whose LCS table would have no more than this many
+     * cells are given to the core algorithm directly.
+     */
+    private final long smallGapCells;
+
+    /**
+     * Elements that occur more often than this in a gap
+     * are never considered as anchors.
+     */
+    private static final int MAX_OCCURRENCES = 64;
+
+    /**
+     * @see DiffAlgorithm#computeChanges(int[], int[], ChangeSink)
+     */
+    public void computeChanges(int[] sequenceA, int[] sequenceB, ChangeSink changes)
+    {
+        new Comparison(sequenceA, sequenceB, changes).run();
+    }
+
+    /**
+     * A Comparison holds the working state of one call to computeChanges.
+     */
+    private class Comparison
+    {
+        Comparison(int[] sequenceA, int[] sequenceB, ChangeSink changes)
+        {
+            this.sequenceA  = sequenceA;
+            this.sequenceB  = sequenceB;
+            this.changes    = changes;
+
+            int tokens = 0;
+
+            for (int id: sequenceA) {
+                tokens = Math.max(tokens, id+1);
+            }
+            for (int id: sequenceB) {
+                tokens = Math.max(tokens, id+1);
+            }
+
+            this.countA = new int[tokens];
+            this.countB = new int[tokens];
+            this.firstB = new int[tokens];
+            this.nextB  = new int[sequenceB.length];
+
+            // Gaps are pushed as quadruples (fromA, toA, fromB, toB).
+            this.gaps   = new int[64];
+        }
+
+        final int[] sequenceA;
+        final int[] sequenceB;
+        final ChangeSink changes;
+
+        /**
+         * Occurrence counts of each token within the current gap,
+         * and the position of its first occurrence in B.
+         */
+        final int[] countA;
+        final int[] countB;
+        final int[] firstB;
+
+        /**
+         * nextB[j] is the position of the next occurrence of
+         * sequenceB[j] within the current gap, or -1.
+         */
+        final int[] nextB;
+
+        /**
+         * A stack of gaps still to be compared. Gaps are pushed in
+         * reverse order, so they are popped, and their changes
+         * reported, front to back.
+         */
+        int[] gaps;
+        int   gapCount = 0;
+
+        void run()
+        {
+            push(0, sequenceA.length, 0, sequenceB.length);
+
+            while (gapCount > 0) {
+                gapCount--;
+                compareGap(gaps[gapCount*4], gaps[gapCount*4+1], gaps[gapCount*4+2], gaps[gapCount*4+3]);
+            }
+        }
+
+        void push(int fromA, int toA, int fromB, int toB)
+        {
+            if ((gapCount+1) * 4 > gaps.length) {
+                gaps = Arrays.copyOf(gaps, gaps.length * 2);
+            }
+
+            gaps[gapCount*4]    = fromA;
+            gaps[gapCount*4+1]  = toA;
+            gaps[gapCount*4+2]  = fromB;
+            gaps[gapCount*4+3]  = toB;
+            gapCount++;
+        }
+
+        /**
+         * Compare sequenceA[fromA..toA) with sequenceB[fromB..toB),
+         * either directly or by splitting it into smaller gaps.
+         */
+        void compareGap(int fromA, int toA, int fromB, int toB)
+        {
+            // Elements common to the head and tail of the gap match;
+            // this also extends the matches on either side of an anchor.
+            while (fromA < toA && fromB < toB && sequenceA[fromA] == sequenceB[fromB]) {
+                fromA++;
+                fromB++;
+            }
+
+            while (fromA < toA && fromB < toB && sequenceA[toA-1] == sequenceB[toB-1]) {
+                toA--;
+                toB--;
+            }
+
+            if (fromA == toA || fromB == toB) {
+                changes.addChange(fromA, toA, fromB, toB);
+            } else if ((long)(toA - fromA) * (toB - fromB) <= smallGapCells) {
+                compareWithCore(fromA, toA, fromB, toB);
+            } else {
+
+                countOccurrences(fromA, toA, fromB, toB);
+
+                boolean split =
+                    splitOnUniqueElements(fromA, toA, fromB, toB) ||
+                    splitOnRareElement(fromA, toA, fromB, toB);
+
+                clearOccurrences(fromA, toA, fromB, toB);
+
+                if (!split) {
+                    compareWithCore(fromA, toA, fromB, toB);
+                }
+            }
+        }
+
+        void compareWithCore(int fromA, int toA, int fromB, int toB)
+        {
+            core.computeChanges(
+                Arrays.copyOfRange(sequenceA, fromA, toA),
+                Arrays.copyOfRange(sequenceB, fromB, toB),
+                new RebasingChangeSink(changes, fromA, fromB)
+            );
+        }
+
+        void countOccurrences(int fromA, int toA, int fromB, int toB)
+        {
+            for (int i = fromA; i < toA; i++) {
+                countA[sequenceA[i]]++;
+            }
+
+            // Walk B backwards to thread each occurrence to the next one.
+            for (int j = toB - 1; j >= fromB; j--) {
+                int token = sequenceB[j];
+                nextB[j] = countB[token] > 0? firstB[token]: -1;
+                countB[token]++;
+                firstB[token] = j;
+            }
+        }
+
+        void clearOccurrences(int fromA, int toA, int fromB, int toB)
+        {
+            for (int i = fromA; i < toA; i++) {
+                countA[sequenceA[i]] = 0;
+            }
+
+            for (int j = fromB; j < toB; j++) {
+                countB[sequenceB[j]] = 0;
+            }
+        }
+
+        /**
+         * Match the elements unique to both sides of the gap, and
+         * split the gap at the longest increasing run of matches.
+         * @return true if the gap was split.
+         */
+        boolean splitOnUniqueElements(int fromA, int toA, int fromB, int toB)
+        {
+            // Collect the unique matches, in A order.
+            int[] matchA = new int[Math.min(toA - fromA, toB - fromB)];
+            int[] matchB = new int[matchA.length];
+            int   matches = 0;
+
+            for (int i = fromA; i < toA; i++) {
+                int token = sequenceA[i];
+
+                if (countA[token] == 1 && countB[token] == 1) {
+                    matchA[matches] = i;
+                    matchB[matches] = firstB[token];
+                    matches++;
+                }
+            }
+
+            if (matches == 0) {
+                return false;
+            }
+
+            // Patience sorting: tails[k] is the match ending the best
+            // increasing run of length k+1 found so far, and previous[]
+            // links each match to its predecessor in its run.
+            int[] tails     = new int[matches];
+            int[] previous  = new int[matches];
+            int   longest   = 0;
+
+            for (int m = 0; m < matches; m++) {
+
+                int low  = 0;
+                int high = longest;
+
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+
+                    if (matchB[tails[mid]] < matchB[m]) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+
+                tails[low]  = m;
+                previous[m] = low > 0? tails[low-1]: -1;
+
+                if (low == longest) {
+                    longest++;
+                }
+            }
+
+            // Push the gaps between anchors, last gap first.
+            int endA = toA;
+            int endB = toB;
+
+            for (int m = tails[longest-1]; m >= 0; m = previous[m]) {
+                push(matchA[m]+1, endA, matchB[m]+1, endB);
+                endA = matchA[m];
+                endB = matchB[m];
+            }
+
+            push(fromA, endA, fromB, endB);
+            return true;
+        }
+
+        /**
+         * Find the longest common run through the least frequent
+         * elements common to both sides of the gap, and split the
+         * gap around it.
+         * @return true if the gap was split.
+         */
+        boolean splitOnRareElement(int fromA, int toA, int fromB, int toB)
+        {
+            int rarest = MAX_OCCURRENCES + 1;
+
+            for (int i = fromA; i < toA; i++) {
+                int token = sequenceA[i];
+
+                if (countB[token] > 0) {
+                    rarest = Math.min(rarest, Math.max(countA[token], countB[token]));
+                }
+            }
+
+            if (rarest > MAX_OCCURRENCES) {
+                return false;
+            }
+
+            int bestA = -1;
+            int bestB = -1;
+            int bestLength = 0;
+
+            for (int i = fromA; i < toA; i++) {
+                int token = sequenceA[i];
+
+                if (countB[token] == 0 || Math.max(countA[token], countB[token]) != rarest) {
+                    continue;
+                }
+
+                // Extend a run through each occurrence in B.
+                for (int j = firstB[token]; j >= 0; j = nextB[j]) {
+
+                    int startA = i;
+                    int startB = j;
+
+                    while (startA > fromA && startB > fromB && sequenceA[startA-1] == sequenceB[startB-1]) {
+                        startA--;
+                        startB--;
+                    }
+
+                    int endA = i + 1;
+                    int endB = j + 1;
+
+                    while (endA < toA && endB < toB && sequenceA[endA] == sequenceB[endB]) {
+                        endA++;
+                        endB++;
+                    }
+
+                    if (endA - startA > bestLength) {
+                        bestA       = startA;
+                        bestB       = startB;
+                        bestLength  = endA - startA;
+                    }
+                }
+            }
+
+            push(bestA + bestLength, toA, bestB + bestLength, toB);
+            push(fromA, bestA, fromB, bestB);
+            return true;
+        }
+    }
+}
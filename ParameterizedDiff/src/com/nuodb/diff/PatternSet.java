@@ -0,0 +1,674 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import java.util.regex.*;
+
+/**
+ * A PatternSet is an ordered list of regular expressions used to
+ * abstract lines of text: the abstract of a line is the concatenation
+ * of the capturing groups of the first pattern that matches the whole
+ * line. Rather than trying every pattern in turn, a PatternSet works
+ * out which literal text each pattern requires -- a literal prefix,
+ * a literal suffix, or literal runs that must appear somewhere -- and
+ * only runs the patterns whose requirements a line meets. Patterns are
+ * also indexed by the first character of their literal prefix, so most
+ * patterns are never even considered for most lines.
+ * <p>
+ * Optionally, the set can reorder itself so that frequently matching
+ * patterns are tried first. A pattern is only ever moved ahead of an
+ * earlier pattern if the two provably can't match the same line,
+ * because their literal prefixes or suffixes conflict, so the first
+ * matching pattern is always the same as in the original order.
+ * <p>
+ * Once all its patterns have been added, a PatternSet may be shared
+ * by any number of threads abstracting lines concurrently. A reordering
+ * builds a fresh dispatch table and publishes it in a single write,
+ * so a concurrent abstraction sees either the old order or the new one,
+ * and both give the same results.
+ */
+public class PatternSet
+{
+    /**
+     * The patterns, in the order they were added.
+     */
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+
+    /**
+     * The literal text each pattern requires.
+     */
+    private final List<RequiredLiterals> requirements = new ArrayList<RequiredLiterals>();
+
+    /**
+     * The order in which patterns are tried.
+     */
+    private volatile int[] order = new int[0];
+
+    /**
+     * candidates[c] is the order in which patterns are tried
+     * on lines that begin with the ASCII character c.
+     */
+    private volatile int[][] candidates = new int[128][];
+
+    /**
+     * The number of lines each pattern has matched; only counted
+     * while adaptive ordering is enabled or statistics are gathered.
+     */
+    private AtomicLongArray hits = new AtomicLongArray(0);
+
+    /**
+     * If true, reorder patterns by their hit counts.
+     */
+    private volatile boolean adaptive = false;
+
+    /**
+     * The number of lines abstracted since the last reordering.
+     */
+    private final AtomicInteger sinceReorder = new AtomicInteger();
+
+    /**
+     * The number of lines between reorderings.
+     */
+    private static final int REORDER_INTERVAL = 1 << 12;
+
+    /**
+     * Recently abstracted lines, or null if caching is disabled.
+     */
+    private volatile AbstractCache cache = null;
+
+    /**
+     * Cached for lines that no pattern matches; compared by identity.
+     */
+    private static final String NO_MATCH = new String("no match");
+
+    /**
+     * Create an empty set, which abstracts no lines.
+     */
+    public PatternSet()
+    {
+        buildCandidates();
+    }
+
+    /**
+     * Add a pattern; it's tried after all the patterns already added.
+     * Patterns must not be added while other threads are abstracting lines.
+     * @param pattern the pattern.
+     */
+    public synchronized void add(Pattern pattern)
+    {
+        patterns.add(pattern);
+        requirements.add(RequiredLiterals.analyze(pattern));
+
+        int[] newOrder = Arrays.copyOf(order, order.length + 1);
+        newOrder[newOrder.length-1] = patterns.size() - 1;
+
+        AtomicLongArray newHits = new AtomicLongArray(hits.length() + 1);
+
+        for (int i = 0; i < hits.length(); i++) {
+            newHits.set(i, hits.get(i));
+        }
+
+        hits  = newHits;
+        order = newOrder;
+        buildCandidates();
+    }
+
+    /**
+     * @return the number of patterns.
+     */
+    public int size()
+    {
+        return patterns.size();
+    }
+
+    /**
+     * @return the number of lines each pattern has matched, in the order
+     * the patterns were added; lines are only counted while adaptive
+     * ordering is enabled or statistics are being gathered.
+     */
+    public long[] getHitCounts()
+    {
+        AtomicLongArray counts = hits;
+        long[] result = new long[counts.length()];
+
+        for (int i = 0; i < result.length; i++) {
+            result[i] = counts.get(i);
+        }
+
+        return result;
+    }
+
+    /**
+     * Enable or disable reordering patterns by hit frequency.
+     * @param adaptive true to reorder the patterns.
+     */
+    public void setAdaptiveOrder(boolean adaptive)
+    {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Cache the abstracts of recently seen lines, so repeated lines
+     * are only matched once, and repeated lines that match a pattern
+     * share a single abstract String.
+     * @param lines the maximum number of lines cached, rounded up to a
+     * multiple of AbstractCache.SEGMENTS; zero disables the cache.
+     */
+    public void setCacheSize(int lines)
+    {
+        this.cache = lines > 0? new AbstractCache(lines): null;
+    }
+
+    /**
+     * Abstract a line of text.
+     * @param text the text.
+     * @return the capturing groups of the first pattern
+     * that matches the text, or null if none matches.
+     */
+    public String abstractOf(CharSequence text)
+    {
+        AbstractCache lineCache = cache;
+
+        if (lineCache == null || patterns.isEmpty()) {
+            return match(text);
+        }
+
+        AbstractCache.LineKey key = new AbstractCache.LineKey(text);
+        String result = lineCache.get(key);
+
+        if (result == null) {
+            result = match(text);
+            result = lineCache.put(key, result != null? result: NO_MATCH);
+        }
+
+        return result != NO_MATCH? result: null;
+    }
+
+    /**
+     * Match a line of text against the patterns.
+     * @param text the text.
+     * @return the capturing groups of the first pattern
+     * that matches the text, or null if none matches.
+     */
+    private String match(CharSequence text)
+    {
+        boolean counting = adaptive || DiffStatistics.isGathering();
+        int attempts = 0;
+
+        // Gathering statistics mustn't change the order the patterns
+        // are tried in, and so the attempts the statistics report.
+        if (adaptive && sinceReorder.incrementAndGet() >= REORDER_INTERVAL) {
+            reorder();
+        }
+
+        int[]   tryOrder = order;
+        int[][] byFirst  = candidates;
+
+        if (text.length() > 0 && text.charAt(0) < byFirst.length) {
+            tryOrder = byFirst[text.charAt(0)];
+        }
+
+        for (int index: tryOrder) {
+
+            if (!requirements.get(index).admits(text)) {
+                continue;
+            }
+
+            Matcher matcher = patterns.get(index).matcher(text);
+            attempts++;
+
+            if (matcher.matches()) {
+                DiffStatistics.count(DiffStatistics.Counter.PatternAttempts, attempts);
+                DiffStatistics.count(DiffStatistics.Counter.PatternHits, 1);
+
+                if (counting) {
+                    hits.incrementAndGet(index);
+                }
+
+                // The groups in the regex are significant.
+                StringBuilder abstractedBuffer = new StringBuilder();
+
+                for (int i = 1; i <= matcher.groupCount(); i++) {
+                    abstractedBuffer.append(matcher.group(i));
+                }
+
+                // First match wins.
+                return abstractedBuffer.toString();
+            }
+        }
+
+        DiffStatistics.count(DiffStatistics.Counter.PatternAttempts, attempts);
+        return null;
+    }
+
+    /**
+     * Index the current order by the first character of each pattern's prefix.
+     */
+    private void buildCandidates()
+    {
+        int[][] newCandidates = new int[candidates.length][];
+
+        for (char c = 0; c < newCandidates.length; c++) {
+
+            int[] forC  = new int[order.length];
+            int   count = 0;
+
+            for (int index: order) {
+                String prefix = requirements.get(index).prefix;
+
+                if (prefix == null || prefix.charAt(0) == c) {
+                    forC[count++] = index;
+                }
+            }
+
+            newCandidates[c] = Arrays.copyOf(forC, count);
+        }
+
+        candidates = newCandidates;
+    }
+
+    /**
+     * Sort the patterns by descending hit count, subject to the
+     * constraint that a pattern that might match the same line as
+     * an earlier pattern must stay behind it. If several threads
+     * reach the reorder interval at once, only the first reorders.
+     */
+    private synchronized void reorder()
+    {
+        if (sinceReorder.get() < REORDER_INTERVAL) {
+            return;
+        }
+
+        sinceReorder.set(0);
+
+        int count = patterns.size();
+        long[] snapshot = new long[count];
+
+        for (int i = 0; i < count; i++) {
+            snapshot[i] = hits.get(i);
+        }
+
+        int[] newOrder = new int[count];
+        boolean[] placed = new boolean[count];
+
+        for (int n = 0; n < count; n++) {
+
+            int best = -1;
+
+            for (int candidate = 0; candidate < count; candidate++) {
+
+                if (placed[candidate] || (best >= 0 && snapshot[candidate] <= snapshot[best])) {
+                    continue;
+                }
+
+                // The candidate is eligible if every earlier pattern
+                // that might overlap with it has been placed.
+                boolean eligible = true;
+
+                for (int earlier = 0; earlier < candidate && eligible; earlier++) {
+                    eligible = placed[earlier] || requirements.get(earlier).isDisjoint(requirements.get(candidate));
+                }
+
+                if (eligible) {
+                    best = candidate;
+                }
+            }
+
+            newOrder[n] = best;
+            placed[best] = true;
+        }
+
+        order = newOrder;
+        buildCandidates();
+    }
+
+    /**
+     * RequiredLiterals records the literal text that any string
+     * matching a pattern (in its entirety) must contain.
+     */
+    static class RequiredLiterals
+    {
+        /**
+         * Text every match begins with, or null.
+         */
+        String prefix;
+
+        /**
+         * Text every match ends with, or null.
+         */
+        String suffix;
+
+        /**
+         * Text every match contains.
+         */
+        final List<String> infixes = new ArrayList<String>();
+
+        /**
+         * Can a string possibly match the pattern?
+         * @param text the string.
+         * @return false if the string lacks some required literal.
+         */
+        boolean admits(CharSequence text)
+        {
+            if (prefix != null && !regionMatches(text, 0, prefix)) {
+                return false;
+            }
+
+            if (suffix != null && !regionMatches(text, text.length() - suffix.length(), suffix)) {
+                return false;
+            }
+
+            for (String infix: infixes) {
+
+                if (indexOf(text, infix) < 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Can no string match both this pattern and another?
+         * @return true if the patterns' prefixes or suffixes conflict.
+         */
+        boolean isDisjoint(RequiredLiterals other)
+        {
+            if (prefix != null && other.prefix != null && !prefix.startsWith(other.prefix) && !other.prefix.startsWith(prefix)) {
+                return true;
+            }
+
+            if (suffix != null && other.suffix != null && !suffix.endsWith(other.suffix) && !other.suffix.endsWith(suffix)) {
+                return true;
+            }
+
+            return false;
+        }
+
+        private static boolean regionMatches(CharSequence text, int offset, String literal)
+        {
+            if (offset < 0 || offset + literal.length() > text.length()) {
+                return false;
+            }
+
+            for (int i = 0; i < literal.length(); i++) {
+
+                if (text.charAt(offset + i) != literal.charAt(i)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private static int indexOf(CharSequence text, String literal)
+        {
+            if (text instanceof String) {
+                return ((String)text).indexOf(literal);
+            }
+
+            for (int i = 0; i + literal.length() <= text.length(); i++) {
+
+                if (regionMatches(text, i, literal)) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        /**
+         * Find the literals a pattern requires. The analysis is
+         * conservative: only literal characters outside of groups,
+         * character classes, and quantifiers are considered, and
+         * patterns with top-level alternation, inline flags, or
+         * compile-time flags require nothing.
+         * @param pattern the pattern.
+         * @return the pattern's required literals.
+         */
+        static RequiredLiterals analyze(Pattern pattern)
+        {
+            RequiredLiterals result = new RequiredLiterals();
+
+            if (pattern.flags() != 0) {
+                return result;
+            }
+
+            String regex = pattern.pattern();
+            int length = regex.length();
+
+            StringBuilder run = new StringBuilder();
+            int runStart = 0;
+            int depth = 0;
+            int i = 0;
+
+            while (i < length) {
+
+                char c = regex.charAt(i);
+
+                if (depth > 0) {
+
+                    // Skip the contents of groups.
+                    if (c == '\\') {
+                        i += 2;
+                    } else if (c == '[') {
+                        i = skipClass(regex, i);
+                    } else {
+                        depth += c == '('? 1: c == ')'? -1: 0;
+                        i++;
+                    }
+
+                    runStart = i;
+                    continue;
+                }
+
+                switch (c) {
+
+                case '\\':
+
+                    if (i + 1 < length && !Character.isLetterOrDigit(regex.charAt(i+1))) {
+                        // An escaped metacharacter is a literal.
+                        run.append(regex.charAt(i+1));
+                        i += 2;
+                    } else if (i + 1 < length && regex.charAt(i+1) == 'Q') {
+                        // Quoted text is too rare to be worth analyzing.
+                        return new RequiredLiterals();
+                    } else {
+                        endRun(result, run, runStart, i, length);
+                        i = skipEscape(regex, i);
+                        runStart = i;
+                    }
+                    break;
+
+                case '[':
+                    endRun(result, run, runStart, i, length);
+                    i = skipClass(regex, i);
+                    runStart = i;
+                    break;
+
+                case '(':
+
+                    if (regex.startsWith("(?", i) && i + 2 < length && ":=!<>".indexOf(regex.charAt(i+2)) < 0) {
+                        // Inline flags change the meaning of later literals.
+                        return new RequiredLiterals();
+                    }
+
+                    endRun(result, run, runStart, i, length);
+                    depth++;
+                    i++;
+                    runStart = i;
+                    break;
+
+                case '|':
+                    return new RequiredLiterals();
+
+                case '*': case '?': case '+': case '{':
+
+                    // The quantified character is not required
+                    // (or not required to appear in just this form).
+                    if (run.length() > 0) {
+                        run.setLength(run.length() - 1);
+                    }
+
+                    endRun(result, run, runStart, -1, length);
+
+                    if (c == '{') {
+                        while (i < length && regex.charAt(i) != '}') {
+                            i++;
+                        }
+                    }
+
+                    i++;
+
+                    // Lazy and possessive quantifiers.
+                    if (i < length && (regex.charAt(i) == '?' || regex.charAt(i) == '+')) {
+                        i++;
+                    }
+
+                    runStart = i;
+                    break;
+
+                case '.': case '^': case '$':
+                    endRun(result, run, runStart, i, length);
+                    i++;
+                    runStart = i;
+                    break;
+
+                default:
+                    run.append(c);
+                    i++;
+                    break;
+                }
+            }
+
+            endRun(result, run, runStart, length, length);
+            return result;
+        }
+
+        /**
+         * Finish the current run of literal characters.
+         * @param start the position in the regex where the run began.
+         * @param end the position in the regex where the run ended,
+         * or -1 if it was truncated by a quantifier.
+         * @param regexLength the length of the regex.
+         */
+        private static void endRun(RequiredLiterals result, StringBuilder run, int start, int end, int regexLength)
+        {
+            if (run.length() > 0) {
+
+                String literal = run.toString();
+
+                if (start == 0 || end == regexLength) {
+
+                    if (start == 0) {
+                        result.prefix = literal;
+                    }
+                    if (end == regexLength) {
+                        result.suffix = literal;
+                    }
+                } else {
+                    result.infixes.add(literal);
+                }
+
+                run.setLength(0);
+            }
+        }
+
+        /**
+         * @return the position following a character class that begins at i.
+         */
+        private static int skipClass(String regex, int i)
+        {
+            int depth = 0;
+
+            do {
+                char c = regex.charAt(i);
+
+                if (c == '\\') {
+                    i++;
+                } else if (c == '[') {
+                    depth++;
+                } else if (c == ']') {
+                    depth--;
+                }
+
+                i++;
+            } while (i < regex.length() && depth > 0);
+
+            return i;
+        }
+
+        /**
+         * @return the position following an escape sequence
+         * such as \d, \p{Alpha}, or \x41 that begins at i.
+         */
+        private static int skipEscape(String regex, int i)
+        {
+            int length = regex.length();
+
+            if (i + 1 >= length) {
+                return length;
+            }
+
+            char kind = regex.charAt(i+1);
+            i += 2;
+
+            if (i < length && regex.charAt(i) == '{' && "pPxN".indexOf(kind) >= 0) {
+                while (i < length && regex.charAt(i) != '}') {
+                    i++;
+                }
+                return Math.min(i + 1, length);
+            } else if (kind == 'p' || kind == 'P' || kind == 'c') {
+                return Math.min(i + 1, length);
+            } else if (kind == 'x') {
+                return Math.min(i + 2, length);
+            } else if (kind == 'u') {
+                return Math.min(i + 4, length);
+            } else if (kind == 'k') {
+                while (i < length && regex.charAt(i) != '>') {
+                    i++;
+                }
+                return Math.min(i + 1, length);
+            } else if (kind == '0' || Character.isDigit(kind)) {
+                while (i < length && Character.isDigit(regex.charAt(i))) {
+                    i++;
+                }
+                return i;
+            }
+
+            return i;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import java.util.zip.GZIPInputStream;
+
+/**
+ * PipelinedLines reads a text file, which may be gzip-compressed, as
+ * batches of lines, for files that can't be memory-mapped. One thread
+ * reads and inflates the file, and another splits it into lines; they
+ * are connected to each other and to the caller by bounded queues. So
+ * reading and inflating, splitting, and whatever the caller does with
+ * each batch of lines, such as abstracting them, overlap, and the file
+ * is never inflated to disk. The reads themselves are not overlapped
+ * with the inflation: GZIPInputStream reads as it inflates.
+ * <p>
+ * Lines are decoded as UTF-8, and their terminators are those
+ * recognized by BufferedReader.readLine(), as for MappedLines.
+ */
+public class PipelinedLines implements Closeable
+{
+    /**
+     * Open a file and start reading it.
+     * @param filePath a path to the file; if it ends in .gz, it's inflated.
+     * @throws IOException if the file can't be opened.
+     */
+    public PipelinedLines(String filePath)
+    throws IOException
+    {
+        final InputStream in = open(filePath);
+
+        this.inflater = new Thread("inflate " + filePath) {
+            public void run() {
+                inflate(in);
+            }
+        };
+
+        this.splitter = new Thread("split " + filePath) {
+            public void run() {
+                split();
+            }
+        };
+
+        inflater.setDaemon(true);
+        splitter.setDaemon(true);
+        inflater.start();
+        splitter.start();
+    }
+
+    /**
+     * The number of bytes read as one chunk.
+     */
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    /**
+     * The number of lines passed to the caller as one batch.
+     */
+    private static final int BATCH_LINES = 1 << 12;
+
+    /**
+     * The number of chunks, or batches, that may be queued
+     * between two stages before the earlier stage waits.
+     */
+    private static final int QUEUE_DEPTH = 16;
+
+    /**
+     * The markers that end the queues.
+     */
+    private static final byte[] END_OF_CHUNKS = new byte[0];
+    private static final String[] END_OF_BATCHES = new String[0];
+
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(QUEUE_DEPTH);
+    private final BlockingQueue<String[]> batches = new ArrayBlockingQueue<String[]>(QUEUE_DEPTH);
+
+    private final Thread inflater;
+    private final Thread splitter;
+
+    /**
+     * The first failure to read the file, if any.
+     */
+    private volatile IOException failure = null;
+
+    /**
+     * True once the last batch has been taken.
+     */
+    private boolean finished = false;
+
+    /**
+     * @return true if a file is gzip-compressed, judging by its name.
+     */
+    public static boolean isCompressed(String filePath)
+    {
+        return filePath.endsWith(".gz");
+    }
+
+    /**
+     * Open a file as a stream of bytes, inflating it if it's compressed.
+     * @param filePath a path to the file.
+     */
+    static InputStream open(String filePath)
+    throws IOException
+    {
+        InputStream in = new FileInputStream(filePath);
+
+        try {
+            if (isCompressed(filePath)) {
+                return new GZIPInputStream(in, CHUNK_SIZE);
+            } else {
+                return new BufferedInputStream(in, CHUNK_SIZE);
+            }
+        } catch (IOException notCompressed) {
+            in.close();
+            throw notCompressed;
+        }
+    }
+
+    /**
+     * Take the next batch of lines, waiting for it to be split.
+     * @return the lines, or null at the end of the file.
+     * @throws IOException if the file couldn't be read.
+     */
+    public String[] nextBatch()
+    throws IOException
+    {
+        if (finished) {
+            return null;
+        }
+
+        String[] batch;
+
+        try {
+            batch = batches.take();
+        } catch (InterruptedException interrupted) {
+            close();
+            throw new InterruptedIOException();
+        }
+
+        if (batch == END_OF_BATCHES) {
+            finished = true;
+
+            if (failure != null) {
+                throw failure;
+            }
+
+            return null;
+        }
+
+        return batch;
+    }
+
+    /**
+     * Stop reading the file, if it hasn't been read to the end.
+     */
+    public void close()
+    {
+        finished = true;
+        inflater.interrupt();
+        splitter.interrupt();
+    }
+
+    /**
+     * The first stage: read, and inflate, the file a chunk at a time.
+     */
+    private void inflate(InputStream in)
+    {
+        try {
+            try {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                int length = 0;
+
+                for (int count = in.read(chunk); count >= 0; count = in.read(chunk, length, chunk.length - length)) {
+                    length += count;
+
+                    if (length == chunk.length) {
+                        chunks.put(chunk);
+                        chunk = new byte[CHUNK_SIZE];
+                        length = 0;
+                    }
+                }
+
+                if (length > 0) {
+                    chunks.put(Arrays.copyOf(chunk, length));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException readFailed) {
+            failure = readFailed;
+        } catch (InterruptedException closed) {
+            // The caller has stopped reading.
+            return;
+        }
+
+        try {
+            chunks.put(END_OF_CHUNKS);
+        } catch (InterruptedException closed) {
+            // The caller has stopped reading.
+        }
+    }
+
+    /**
+     * The second stage: split the chunks into lines, and decode them.
+     */
+    private void split()
+    {
+        ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        String[] batch = new String[BATCH_LINES];
+        int lines = 0;
+        boolean skipLineFeed = false;
+
+        try {
+            for (byte[] chunk = chunks.take(); chunk != END_OF_CHUNKS; chunk = chunks.take()) {
+
+                int lineStart = 0;
+
+                if (skipLineFeed && chunk[0] == '\n') {
+                    // The second byte of a CR LF that straddles two chunks.
+                    lineStart = 1;
+                }
+
+                skipLineFeed = false;
+
+                for (int i = lineStart; i < chunk.length; i++) {
+
+                    byte b = chunk[i];
+
+                    if (b == '\n' || b == '\r') {
+
+                        if (partial.size() > 0) {
+                            partial.write(chunk, lineStart, i - lineStart);
+                            batch[lines++] = new String(partial.toByteArray(), StandardCharsets.UTF_8);
+                            partial.reset();
+                        } else {
+                            batch[lines++] = new String(chunk, lineStart, i - lineStart, StandardCharsets.UTF_8);
+                        }
+
+                        if (b == '\r') {
+                            if (i+1 < chunk.length) {
+                                if (chunk[i+1] == '\n') {
+                                    i++;
+                                }
+                            } else {
+                                skipLineFeed = true;
+                            }
+                        }
+
+                        lineStart = i + 1;
+
+                        if (lines == batch.length) {
+                            batches.put(batch);
+                            batch = new String[BATCH_LINES];
+                            lines = 0;
+                        }
+                    }
+                }
+
+                partial.write(chunk, lineStart, chunk.length - lineStart);
+            }
+
+            if (partial.size() > 0) {
+                // The last line of the file need not be terminated.
+                batch[lines++] = new String(partial.toByteArray(), StandardCharsets.UTF_8);
+            }
+
+            if (lines > 0) {
+                batches.put(Arrays.copyOf(batch, lines));
+            }
+
+            batches.put(END_OF_BATCHES);
+
+        } catch (InterruptedException closed) {
+            // The caller has stopped reading.
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.io.IOException;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * A PrimitiveDiffEngine compares two sequences of chars, bytes, or
+ * ints, without boxing them. Where a DiffEngine must intern each
+ * element through a TokenTable, whose every lookup calls hashCode()
+ * and equals(), a char or a byte is already its own id, and ints are
+ * interned by an IntTokenTable of primitive arrays; the comparison
+ * itself then runs over int arrays as usual. Only the elements that
+ * changed are boxed, as the content of their Differences, so the
+ * results are the same Differences and Chunks a DiffEngine over
+ * Character, Byte, or Integer elements would produce.
+ */
+public class PrimitiveDiffEngine
+{
+    /**
+     * Prepare to compare two sequences of chars.
+     * @param sequenceA the first sequence.
+     * @param sequenceB the second sequence.
+     * @param algorithm the algorithm that compares them.
+     */
+    public PrimitiveDiffEngine(final char[] sequenceA, final char[] sequenceB, DiffAlgorithm algorithm)
+    {
+        this.comparison = new InternedComparison(new CharList(sequenceA), new CharList(sequenceB), algorithm) {
+            protected int[][] intern()
+            {
+                long start = DiffStatistics.start();
+                int[][] ids = { idsOf(sequenceA), idsOf(sequenceB) };
+                DiffStatistics.stop(DiffStatistics.Phase.Intern, start);
+                return ids;
+            }
+        };
+    }
+
+    /**
+     * Prepare to compare two sequences of characters, such as Strings.
+     * @param sequenceA the first sequence.
+     * @param sequenceB the second sequence.
+     * @param algorithm the algorithm that compares them.
+     */
+    public PrimitiveDiffEngine(CharSequence sequenceA, CharSequence sequenceB, DiffAlgorithm algorithm)
+    {
+        this(toCharArray(sequenceA), toCharArray(sequenceB), algorithm);
+    }
+
+    /**
+     * Prepare to compare two sequences of bytes.
+     * @param sequenceA the first sequence.
+     * @param sequenceB the second sequence.
+     * @param algorithm the algorithm that compares them.
+     */
+    public PrimitiveDiffEngine(final byte[] sequenceA, final byte[] sequenceB, DiffAlgorithm algorithm)
+    {
+        this.comparison = new InternedComparison(new ByteList(sequenceA), new ByteList(sequenceB), algorithm) {
+            protected int[][] intern()
+            {
+                long start = DiffStatistics.start();
+                int[][] ids = { idsOf(sequenceA), idsOf(sequenceB) };
+                DiffStatistics.stop(DiffStatistics.Phase.Intern, start);
+                return ids;
+            }
+        };
+    }
+
+    /**
+     * Prepare to compare two sequences of ints, such as hashes of lines.
+     * Equal ints are equal elements; the caller is responsible for
+     * resolving any collisions before the ints are compared.
+     * @param sequenceA the first sequence.
+     * @param sequenceB the second sequence.
+     * @param algorithm the algorithm that compares them.
+     */
+    public PrimitiveDiffEngine(final int[] sequenceA, final int[] sequenceB, DiffAlgorithm algorithm)
+    {
+        this.comparison = new InternedComparison(new IntList(sequenceA), new IntList(sequenceB), algorithm) {
+            protected int[][] intern()
+            {
+                long start = DiffStatistics.start();
+                IntTokenTable tokens = new IntTokenTable();
+                int[][] ids = { tokens.intern(sequenceA), tokens.intern(sequenceB) };
+                DiffStatistics.stop(DiffStatistics.Phase.Intern, start);
+                return ids;
+            }
+        };
+    }
+
+    /**
+     * The comparison of the interned sequences, which
+     * keeps the edit script once it's computed.
+     */
+    private final InternedComparison comparison;
+
+    /**
+     * Compute the edit script that will transform sequence A to sequence B.
+     * @return the edit script.
+     * @see DiffEngine#getEditScript()
+     */
+    public EditScript getEditScript()
+    {
+        return comparison.getEditScript();
+    }
+
+    /**
+     * Generate a sequence of edit operations that will transform
+     * sequence A to sequence B.
+     * @return a list of element-by-element differences.
+     * @see DiffEngine#getDifferences()
+     */
+    public List<Difference> getDifferences()
+    {
+        return comparison.getDifferences();
+    }
+
+    /**
+     * Generate the edit operations that will transform sequence A
+     * to sequence B, coalesced into regions, and pass each region
+     * to a sink.
+     * @param regions the sink that receives the regions, front to back.
+     * @return the number of element-by-element differences.
+     * @throws IOException if the sink fails.
+     * @see DiffEngine#emitRegions(RegionSink)
+     */
+    public int emitRegions(RegionSink regions)
+    throws IOException
+    {
+        return comparison.emitRegions(regions);
+    }
+
+    /**
+     * Count the element-by-element differences without generating
+     * them, giving up as soon as there are known to be more than a limit.
+     * @param limit the largest count of interest.
+     * @return the number of differences, or limit+1 if there are more than limit.
+     * @see DiffEngine#countDifferences(int)
+     */
+    public int countDifferences(int limit)
+    {
+        return comparison.countDifferences(limit);
+    }
+
+    /**
+     * Choose how countDifferences() counts the differences when the
+     * algorithm finds minimal edit scripts.
+     * @param counter the counter, such as a MyersDiff or a BitParallelLcs.
+     * @see DiffEngine#setDistanceCounter(DistanceCounter)
+     */
+    public void setDistanceCounter(DistanceCounter counter)
+    {
+        comparison.setDistanceCounter(counter);
+    }
+
+    /**
+     * A char is its own id.
+     */
+    private static int[] idsOf(char[] sequence)
+    {
+        int[] ids = new int[sequence.length];
+
+        for (int i = 0; i < sequence.length; i++) {
+            ids[i] = sequence[i];
+        }
+
+        return ids;
+    }
+
+    /**
+     * A byte's id is its unsigned value.
+     */
+    private static int[] idsOf(byte[] sequence)
+    {
+        int[] ids = new int[sequence.length];
+
+        for (int i = 0; i < sequence.length; i++) {
+            ids[i] = sequence[i] & 0xFF;
+        }
+
+        return ids;
+    }
+
+    private static char[] toCharArray(CharSequence sequence)
+    {
+        if (sequence instanceof String) {
+            return ((String)sequence).toCharArray();
+        }
+
+        char[] result = new char[sequence.length()];
+
+        for (int i = 0; i < result.length; i++) {
+            result[i] = sequence.charAt(i);
+        }
+
+        return result;
+    }
+
+    /**
+     * A CharList presents a char array as a list of Characters.
+     */
+    private static class CharList extends AbstractList<Object>
+    {
+        CharList(char[] elements)
+        {
+            this.elements = elements;
+        }
+
+        private final char[] elements;
+
+        public int size()
+        {
+            return elements.length;
+        }
+
+        public Object get(int index)
+        {
+            return elements[index];
+        }
+    }
+
+    /**
+     * A ByteList presents a byte array as a list of Bytes.
+     */
+    private static class ByteList extends AbstractList<Object>
+    {
+        ByteList(byte[] elements)
+        {
+            this.elements = elements;
+        }
+
+        private final byte[] elements;
+
+        public int size()
+        {
+            return elements.length;
+        }
+
+        public Object get(int index)
+        {
+            return elements[index];
+        }
+    }
+
+    /**
+     * An IntList presents an int array as a list of Integers.
+     */
+    private static class IntList extends AbstractList<Object>
+    {
+        IntList(int[] elements)
+        {
+            this.elements = elements;
+        }
+
+        private final int[] elements;
+
+        public int size()
+        {
+            return elements.length;
+        }
+
+        public Object get(int index)
+        {
+            return elements[index];
+        }
+    }
+}
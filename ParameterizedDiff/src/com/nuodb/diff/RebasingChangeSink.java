@@ -0,0 +1,60 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+/**
+ * A RebasingChangeSink forwards changes found in a window of
+ * a pair of sequences to another sink, translating positions
+ * relative to the window into positions in the whole sequences.
+ */
+class RebasingChangeSink implements ChangeSink
+{
+    /**
+     * @param target the sink that receives the rebased changes.
+     * @param offsetA the position of the window in sequence A.
+     * @param offsetB the position of the window in sequence B.
+     */
+    RebasingChangeSink(ChangeSink target, int offsetA, int offsetB)
+    {
+        this.target     = target;
+        this.offsetA    = offsetA;
+        this.offsetB    = offsetB;
+    }
+
+    private final ChangeSink target;
+    private final int offsetA;
+    private final int offsetB;
+
+    /**
+     * @see ChangeSink#addChange(int, int, int, int)
+     */
+    public void addChange(int startA, int endA, int startB, int endB)
+    {
+        target.addChange(startA + offsetA, endA + offsetA, startB + offsetB, endB + offsetB);
+    }
+}
@@ -0,0 +1,385 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A StreamingDiff compares two sequences that are too large to hold
+ * in memory. It reads both inputs incrementally into bounded windows,
+ * looks for the nearest run of elements common to both windows, and
+ * compares only the elements ahead of that run with a DiffAlgorithm;
+ * everything up to and including the run is then settled, and its
+ * coalesced regions are available from the iterator before the rest
+ * of the input has been read.
+ * <p>
+ * Memory is bounded by the window size rather than the input size,
+ * at a price: a change larger than a window cannot be aligned
+ * optimally, though the regions emitted are still a valid diff.
+ */
+public class StreamingDiff<T extends Comparable<T>> implements Iterator<DiffRegion>
+{
+    /**
+     * Construct a StreamingDiff with the default anchor length.
+     * @param inputA the elements of the first sequence.
+     * @param inputB the elements of the second sequence.
+     * @param algorithm the algorithm that compares each window.
+     * @param windowSize the maximum number of elements buffered from each input.
+     */
+    public StreamingDiff(Iterator<T> inputA, Iterator<T> inputB, DiffAlgorithm algorithm, int windowSize)
+    {
+        this(inputA, inputB, algorithm, windowSize, DEFAULT_ANCHOR_LENGTH);
+    }
+
+    /**
+     * Construct a StreamingDiff.
+     * @param inputA the elements of the first sequence.
+     * @param inputB the elements of the second sequence.
+     * @param algorithm the algorithm that compares each window.
+     * @param windowSize the maximum number of elements buffered from each input.
+     * @param anchorLength the number of consecutive common elements
+     * that is taken as evidence the two inputs are back in step.
+     */
+    public StreamingDiff(Iterator<T> inputA, Iterator<T> inputB, DiffAlgorithm algorithm, int windowSize, int anchorLength)
+    {
+        if (windowSize < anchorLength || anchorLength < 1) {
+            throw new IllegalArgumentException(
+                String.format("Invalid window size %d for anchor length %d", windowSize, anchorLength)
+            );
+        }
+
+        this.inputA         = inputA;
+        this.inputB         = inputB;
+        this.algorithm      = algorithm;
+        this.windowSize     = windowSize;
+        this.anchorLength   = anchorLength;
+    }
+
+    /**
+     * The default anchor length.
+     */
+    public static final int DEFAULT_ANCHOR_LENGTH = 4;
+
+    private final Iterator<T> inputA;
+    private final Iterator<T> inputB;
+    private final DiffAlgorithm algorithm;
+    private final int windowSize;
+    private final int anchorLength;
+
+    /**
+     * The elements read but not yet settled.
+     */
+    private final List<T> windowA = new ArrayList<T>();
+    private final List<T> windowB = new ArrayList<T>();
+
+    /**
+     * The number of elements of each input that have been settled,
+     * i.e., the position of the first element of each window.
+     */
+    private int baseA = 0;
+    private int baseB = 0;
+
+    /**
+     * Coalesced regions that have been settled but not yet returned.
+     */
+    private final LinkedList<DiffRegion> settled = new LinkedList<DiffRegion>();
+
+    /**
+     * The number of element-by-element differences settled so far.
+     */
+    private int differenceCount = 0;
+
+    private boolean finished = false;
+
+    /**
+     * @return true if there is another coalesced region; this
+     * reads input until the next region is settled.
+     */
+    public boolean hasNext()
+    {
+        while (settled.isEmpty() && !finished) {
+            advance();
+        }
+
+        return !settled.isEmpty();
+    }
+
+    /**
+     * @return the next coalesced region, a Difference or a Chunk.
+     */
+    public DiffRegion next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return settled.removeFirst();
+    }
+
+    /**
+     * Not supported.
+     */
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the number of element-by-element differences found so far;
+     * once the iterator is exhausted, this is the size of the whole diff.
+     */
+    public int getDifferenceCount()
+    {
+        return differenceCount;
+    }
+
+    /**
+     * Refill the windows, and settle as much of them as possible.
+     */
+    private void advance()
+    {
+        fill(windowA, inputA);
+        fill(windowB, inputB);
+
+        // Common heads are settled without further ado.
+        int common = 0;
+
+        while (common < windowA.size() && common < windowB.size() && windowA.get(common).compareTo(windowB.get(common)) == 0) {
+            common++;
+        }
+
+        if (common > 0) {
+            drop(common, common);
+            return;
+        }
+
+        if (!inputA.hasNext() && !inputB.hasNext()) {
+
+            // Everything left is in the windows.
+            settle(compare(windowA.size(), windowB.size()));
+            drop(windowA.size(), windowB.size());
+            finished = true;
+            return;
+        }
+
+        int[] anchor = findAnchor();
+
+        if (anchor != null) {
+
+            // The inputs are back in step at the anchor, so everything
+            // ahead of it can be compared and settled, and the anchor
+            // itself is common to both inputs.
+            settle(compare(anchor[0], anchor[1]));
+            drop(anchor[0] + anchorLength, anchor[1] + anchorLength);
+
+        } else {
+
+            // No anchor in sight: compare the whole windows, and settle
+            // everything ahead of the last region if it runs into the
+            // unread input, since more input might change it.
+            List<Difference> diffs = compare(windowA.size(), windowB.size());
+            Difference last = diffs.get(diffs.size()-1);
+            int regionStart = diffs.size() - 1;
+
+            while (regionStart > 0 && diffs.get(regionStart-1).canCoalesce(diffs.get(regionStart))) {
+                regionStart--;
+            }
+
+            Difference first = diffs.get(regionStart);
+            int startA = first.isRemove()? first.positionA-1: first.positionA;
+            int startB = first.isRemove()? first.positionB: first.positionB-1;
+
+            boolean open =
+                last.positionA == baseA + windowA.size() ||
+                last.positionB == baseB + windowB.size();
+
+            if (!open || regionStart == 0 && startA == baseA && startB == baseB) {
+                // Either the windows are settled, or there is no way
+                // to make progress without settling the open region.
+                settle(diffs);
+                drop(windowA.size(), windowB.size());
+            } else {
+                settle(diffs.subList(0, regionStart));
+                drop(startA - baseA, startB - baseB);
+            }
+        }
+    }
+
+    /**
+     * Top up a window from its input.
+     */
+    private void fill(List<T> window, Iterator<T> input)
+    {
+        while (window.size() < windowSize && input.hasNext()) {
+            window.add(input.next());
+        }
+    }
+
+    /**
+     * Discard settled elements from the heads of the windows.
+     */
+    private void drop(int countA, int countB)
+    {
+        windowA.subList(0, countA).clear();
+        windowB.subList(0, countB).clear();
+        baseA += countA;
+        baseB += countB;
+    }
+
+    /**
+     * Find the nearest anchor: the run of anchorLength common elements
+     * that starts at the smallest combined offset into both windows.
+     * Runs are looked up by a rolling hash of their elements' hash
+     * codes, so each run is hashed in constant time, and only runs
+     * whose hashes match are compared element by element. Elements
+     * that a TokenTable wouldn't hash all hash to 0 here.
+     * @return the anchor's offsets into windowA and windowB, or null.
+     */
+    private int[] findAnchor()
+    {
+        int[] hashesB = runHashes(windowB);
+
+        // The first run in windowB with each hash, and for each run,
+        // the next run after it with the same hash.
+        Map<Integer, Integer> firstB = new HashMap<Integer, Integer>();
+        int[] nextB = new int[hashesB.length];
+
+        for (int q = hashesB.length - 1; q >= 0; q--) {
+            Integer next = firstB.put(hashesB[q], q);
+            nextB[q] = next != null? next: -1;
+        }
+
+        int[] hashesA = runHashes(windowA);
+        int[] best = null;
+
+        for (int p = 0; p < hashesA.length && (best == null || p < best[0] + best[1]); p++) {
+            Integer first = firstB.get(hashesA[p]);
+
+            for (int q = first != null? first: -1; q >= 0 && (best == null || p + q < best[0] + best[1]); q = nextB[q]) {
+
+                if (isSameRun(p, q)) {
+                    best = new int[] { p, q };
+                    break;
+                }
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Hash every run of anchorLength elements in a window.
+     * @return the hash of the run starting at each offset.
+     */
+    private int[] runHashes(List<T> window)
+    {
+        int[] hashes = new int[Math.max(0, window.size() - anchorLength + 1)];
+        int[] elements = new int[window.size()];
+        int power = 1;
+        int hash = 0;
+
+        for (int i = 0; i < elements.length; i++) {
+            T element = window.get(i);
+            elements[i] = TokenTable.isConsistentWithEquals(element)? element.hashCode(): 0;
+        }
+
+        for (int i = 1; i < anchorLength; i++) {
+            power *= RUN_HASH_BASE;
+        }
+
+        for (int i = 0; i < elements.length; i++) {
+
+            if (i >= anchorLength) {
+                hash -= elements[i - anchorLength] * power;
+            }
+
+            hash = hash * RUN_HASH_BASE + elements[i];
+
+            if (i >= anchorLength - 1) {
+                hashes[i - anchorLength + 1] = hash;
+            }
+        }
+
+        return hashes;
+    }
+
+    /**
+     * The base of the rolling hash of a run.
+     */
+    private static final int RUN_HASH_BASE = 31;
+
+    /**
+     * Are the runs at windowA[p] and windowB[q] the same?
+     */
+    private boolean isSameRun(int p, int q)
+    {
+        for (int k = 0; k < anchorLength; k++) {
+
+            if (windowA.get(p + k).compareTo(windowB.get(q + k)) != 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Compare the heads of the windows.
+     * @return the element-by-element differences,
+     * positioned in the whole inputs.
+     */
+    private List<Difference> compare(int sizeA, int sizeB)
+    {
+        List<Difference> local = new DiffEngine<T>(windowA.subList(0, sizeA), windowB.subList(0, sizeB), algorithm).getDifferences();
+        List<Difference> rebased = new ArrayList<Difference>(local.size());
+
+        for (Difference d: local) {
+            rebased.add(new Difference(d.positionA + baseA, d.positionB + baseB, d.type, d.content));
+        }
+
+        return rebased;
+    }
+
+    /**
+     * Coalesce settled differences and make them available to the iterator.
+     */
+    private void settle(List<Difference> diffs)
+    {
+        differenceCount += diffs.size();
+
+        for (Object region: DiffEngine.coalesceRegions(diffs)) {
+            settled.add((DiffRegion)region);
+        }
+    }
+}
@@ -27,7 +27,15 @@
  ****************************************************************************/
 package com.nuodb.diff;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+import java.nio.ByteBuffer;
+
 import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -41,31 +49,315 @@ public class TestDiff
     throws Exception
     {
         boolean coalesce = false;
+        String algorithmName = "lcs";
+        long threshold = 0;
+        long budget = LcsDiff.DEFAULT_TABLE_BUDGET;
+        int windowSize = 0;
+        int increment = 0;
+        boolean check = false;
 
         if (argv.length < 2) {
-            System.err.printf("Usage:\tTestDiff <originalText> <newText> [-c]\n");
+            System.err.printf("Usage:\tTestDiff <originalText> <newText> [-c] [-a algorithm] [-s window] [-i increment] [-t cells] [-m bytes] [-x]\n");
             System.err.printf("\t-c\tcoalesce element-by-element add/delete entries into chunks.\n");
+            System.err.printf("\t-a\tcompare using the named algorithm: lcs (the default), myers, hirschberg, patience, or anchored.\n");
+            System.err.printf("\t-s\tcompare a window of elements at a time; the output is always coalesced.\n");
+            System.err.printf("\t-i\tappend the new text an increment at a time to an incremental diff; the output is always coalesced.\n");
+            System.err.printf("\t-t\tswitch to the algorithm's strategy for large inputs at this many LCS table cells; 0 is the default.\n");
+            System.err.printf("\t-m\tlimit an LCS table, or a Myers trace, to this many bytes; 0 is the default.\n");
+            System.err.printf("\t-x\tcheck the number of differences against an LcsDiff, and against the length of the LCS;\n\t\tan LcsDiff's or HirschbergDiff's edit script must match a serial LcsDiff's,\n\t\tand comparing the text as bytes or ints must give the same edit script.\n");
             System.exit(1);
         }
 
-        if (argv.length == 3 && argv[2].equals("-c")) {
-            coalesce = true;
+        for (int i = 2; i < argv.length; i++) {
+            if (argv[i].equals("-c")) {
+                coalesce = true;
+            } else if (argv[i].equals("-a") && i+1 < argv.length) {
+                algorithmName = argv[++i];
+            } else if (argv[i].equals("-s") && i+1 < argv.length) {
+                windowSize = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equals("-i") && i+1 < argv.length) {
+                increment = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equals("-t") && i+1 < argv.length) {
+                threshold = Long.parseLong(argv[++i]);
+            } else if (argv[i].equals("-m") && i+1 < argv.length) {
+                long bytes = Long.parseLong(argv[++i]);
+                budget = bytes > 0? bytes: LcsDiff.DEFAULT_TABLE_BUDGET;
+            } else if (argv[i].equals("-x")) {
+                check = true;
+            }
         }
 
-        List<Character>  s1 = asList(argv[0]);
-        List<Character>  s2 = asList(argv[1]);
+        DiffAlgorithm algorithm = DiffEngine.getAlgorithm(algorithmName, budget, threshold);
 
-        List<Difference> differences = new DiffEngine<Character>(s1, s2).getDifferences();
+        if (windowSize > 0) {
+            List<Character>  s1 = asList(argv[0]);
+            List<Character>  s2 = asList(argv[1]);
+            StreamingDiff<Character> diff = new StreamingDiff<Character>(s1.iterator(), s2.iterator(), algorithm, windowSize, 1);
 
-        if (coalesce) {
-            for (Object nextChunk: DiffEngine.coalesceRegions(differences)) {
-                System.out.println(nextChunk);
+            while (diff.hasNext()) {
+                System.out.println(diff.next());
+            }
+
+            if (check) {
+                check(argv[0], argv[1], diff.getDifferenceCount(), false);
+            }
+
+            return;
+        }
+
+        if (increment > 0) {
+            List<Character>  s2 = asList(argv[1]);
+
+            // Settle regions as eagerly as possible, to exercise the session.
+            IncrementalDiff<Character> diff = new IncrementalDiff<Character>(asList(argv[0]), algorithm, 1);
+            DiffWriter out = new DiffWriter(new OutputStreamWriter(System.out));
+
+            for (int i = 0; i < s2.size(); i += increment) {
+                diff.append(s2.subList(i, Math.min(i + increment, s2.size())));
+                diff.update(out);
             }
+
+            int count = diff.finish(out);
+            out.flush();
+
+            if (check) {
+                check(argv[0], argv[1], count, false);
+            }
+
+            return;
+        }
+
+        DiffEngine<Character> engine = new DiffEngine<Character>(asList(argv[0]), asList(argv[1]), algorithm);
+
+        if (coalesce) {
+            DiffWriter out = new DiffWriter(new OutputStreamWriter(System.out));
+            engine.emitRegions(out);
+            out.flush();
         } else {
-            for (Difference nextDiff: differences) {
+            for (Difference nextDiff: engine.getDifferences()) {
                 System.out.println(nextDiff);
             }
         }
+
+        if (check) {
+            int count = engine.getEditScript().getDifferenceCount();
+            check(argv[0], argv[1], count, DiffEngine.isMinimal(algorithm));
+
+            // A fresh engine counts the differences without an edit script.
+            DiffEngine<Character> counter = new DiffEngine<Character>(asList(argv[0]), asList(argv[1]), algorithm);
+
+            if (counter.countDifferences(Integer.MAX_VALUE - 1) != count) {
+                fail("counted %d differences, but the edit script has %d", counter.countDifferences(Integer.MAX_VALUE - 1), count);
+            }
+
+            // So does a fresh engine that counts them from the length of the LCS.
+            DiffEngine<Character> bitParallel = new DiffEngine<Character>(asList(argv[0]), asList(argv[1]), algorithm);
+            bitParallel.setDistanceCounter(new BitParallelLcs());
+
+            if (bitParallel.countDifferences(Integer.MAX_VALUE - 1) != count) {
+                fail("BitParallelLcs counted %d differences, but the edit script has %d", bitParallel.countDifferences(Integer.MAX_VALUE - 1), count);
+            }
+
+            // However an LcsDiff fills its table, or if it falls back to
+            // a HirschbergDiff, the edit script is the same.
+            if (algorithm instanceof LcsDiff || algorithm instanceof HirschbergDiff) {
+                LcsDiff serial = new LcsDiff(LcsDiff.DEFAULT_TABLE_BUDGET, Long.MAX_VALUE);
+                List<Difference> expected = new DiffEngine<Character>(asList(argv[0]), asList(argv[1]), serial).getDifferences();
+
+                if (!expected.toString().equals(engine.getDifferences().toString())) {
+                    fail("the edit script differs from a serial LcsDiff's: %s", expected);
+                }
+            }
+
+            if (coalesce) {
+                checkRoundTrip(engine);
+            }
+
+            checkPrimitivePaths(argv[0], argv[1], algorithm, engine.getEditScript());
+        }
+    }
+
+    /**
+     * Check the number of differences found between two strings against
+     * the number an LcsDiff finds, and the number BitParallelLcs computes
+     * from the length of their LCS, exiting with status 2 on a mismatch.
+     * @param minimal true if the count should be minimal, rather than at least minimal.
+     */
+    private static void check(String s1, String s2, int count, boolean minimal)
+    {
+        int expected = new DiffEngine<Character>(asList(s1), asList(s2), new LcsDiff()).getEditScript().getDifferenceCount();
+
+        if (BitParallelLcs.editDistance(asList(s1), asList(s2)) != expected) {
+            fail("BitParallelLcs found an edit distance of %d, not %d", BitParallelLcs.editDistance(asList(s1), asList(s2)), expected);
+        }
+
+        if (minimal? count != expected: count < expected) {
+            fail("found %d differences; LcsDiff found %d", count, expected);
+        }
+    }
+
+    /**
+     * Write an engine's regions as a binary edit script, and check
+     * that an EditScriptReader reads the same regions back, and
+     * reports every truncation of the script as an IOException. The
+     * Differences and Chunks of the engine's coalesced differences
+     * must write the same script as its EditScript.Regions.
+     */
+    private static void checkRoundTrip(DiffEngine<Character> engine)
+    throws IOException
+    {
+        final List<DiffRegion> regions = new ArrayList<DiffRegion>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final EditScriptWriter writer = new EditScriptWriter(bytes, true);
+
+        engine.emitRegions(new RegionSink() {
+            public void addRegion(DiffRegion region)
+            throws IOException
+            {
+                regions.add(region);
+                writer.addRegion(region);
+            }
+        });
+
+        writer.finish();
+        byte[] script = bytes.toByteArray();
+
+        ByteArrayOutputStream coalesced = new ByteArrayOutputStream();
+        EditScriptWriter coalescedWriter = new EditScriptWriter(coalesced, true);
+
+        for (Object region: DiffEngine.coalesceRegions(engine.getDifferences())) {
+            coalescedWriter.addRegion((DiffRegion)region);
+        }
+
+        coalescedWriter.finish();
+
+        if (!Arrays.equals(coalesced.toByteArray(), script)) {
+            fail("the coalesced Differences and Chunks write a different edit script");
+        }
+
+        EditScriptReader reader = new EditScriptReader(ByteBuffer.wrap(script));
+
+        for (DiffRegion region: regions) {
+            boolean same =
+                reader.next() &&
+                reader.getStartA() == region.getStartA() &&
+                reader.getCountA() == region.getCountA() &&
+                reader.getStartB() == region.getStartB() &&
+                reader.getCountB() == region.getCountB();
+
+            for (int k = 0; same && k < region.getCountA(); k++) {
+                same = EditScriptReader.decode(reader.getRemovedLine(k)).equals(String.valueOf(region.getRemoved(k)));
+            }
+
+            for (int k = 0; same && k < region.getCountB(); k++) {
+                same = EditScriptReader.decode(reader.getInsertedLine(k)).equals(String.valueOf(region.getInserted(k)));
+            }
+
+            if (!same) {
+                fail("the edit script read back doesn't match the region %s", region);
+            }
+        }
+
+        if (reader.next()) {
+            fail("the edit script read back has more regions than were written");
+        }
+
+        for (int length = 0; length < script.length; length++) {
+            try {
+                EditScriptReader truncated = new EditScriptReader(ByteBuffer.wrap(script, 0, length));
+
+                while (truncated.next()) {
+                }
+
+                fail("an edit script truncated to %d of %d bytes was read without error", length, script.length);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    /**
+     * Compare two strings again with a PrimitiveDiffEngine, as chars,
+     * as bytes and as ints, and check that each gives the same edit
+     * script and count as the DiffEngine over Characters. The ints are
+     * the chars scrambled by an odd multiplier, so the IntTokenTable
+     * sees ids spread over the whole int range. Strings with chars
+     * that don't fit in a byte aren't compared as bytes.
+     */
+    private static void checkPrimitivePaths(String s1, String s2, DiffAlgorithm algorithm, EditScript expected)
+    {
+        String text1 = asText(s1);
+        String text2 = asText(s2);
+        byte[] bytes1 = new byte[text1.length()];
+        byte[] bytes2 = new byte[text2.length()];
+        int[] ints1 = new int[text1.length()];
+        int[] ints2 = new int[text2.length()];
+        boolean fitsBytes = true;
+
+        for (int i = 0; i < text1.length(); i++) {
+            fitsBytes &= text1.charAt(i) < 256;
+            bytes1[i] = (byte)text1.charAt(i);
+            ints1[i] = text1.charAt(i) * 0x9E3779B1;
+        }
+
+        for (int i = 0; i < text2.length(); i++) {
+            fitsBytes &= text2.charAt(i) < 256;
+            bytes2[i] = (byte)text2.charAt(i);
+            ints2[i] = text2.charAt(i) * 0x9E3779B1;
+        }
+
+        checkSameScript("char[]", new PrimitiveDiffEngine(text1, text2, algorithm).getEditScript(), expected);
+
+        if (new PrimitiveDiffEngine(text1, text2, algorithm).countDifferences(Integer.MAX_VALUE - 1) != expected.getDifferenceCount()) {
+            fail("the char[] comparison counted a different number of differences");
+        }
+
+        if (fitsBytes) {
+            checkSameScript("byte[]", new PrimitiveDiffEngine(bytes1, bytes2, algorithm).getEditScript(), expected);
+
+            if (new PrimitiveDiffEngine(bytes1, bytes2, algorithm).countDifferences(Integer.MAX_VALUE - 1) != expected.getDifferenceCount()) {
+                fail("the byte[] comparison counted a different number of differences");
+            }
+        }
+
+        checkSameScript("int[]", new PrimitiveDiffEngine(ints1, ints2, algorithm).getEditScript(), expected);
+
+        if (new PrimitiveDiffEngine(ints1, ints2, algorithm).countDifferences(Integer.MAX_VALUE - 1) != expected.getDifferenceCount()) {
+            fail("the int[] comparison counted a different number of differences");
+        }
+    }
+
+    private static void checkSameScript(String path, EditScript script, EditScript expected)
+    {
+        boolean same = script.size() == expected.size();
+
+        for (int run = 0; same && run < script.size(); run++) {
+            same =
+                script.isRemove(run) == expected.isRemove(run) &&
+                script.getStartA(run) == expected.getStartA(run) &&
+                script.getStartB(run) == expected.getStartB(run) &&
+                script.getLength(run) == expected.getLength(run);
+        }
+
+        if (!same) {
+            fail("the %s comparison found a different edit script", path);
+        }
+    }
+
+    private static void fail(String diagnostic, Object... args)
+    {
+        System.err.printf(diagnostic, args);
+        System.err.println();
+        System.exit(2);
+    }
+
+    /**
+     * Interpret a command-line argument as text.
+     * @param string the argument.
+     * @return the argument, or an empty string if it's -empty-.
+     */
+    public static String asText(String string)
+    {
+        return "-empty-".equals(string)? "": string;
     }
 
     /**
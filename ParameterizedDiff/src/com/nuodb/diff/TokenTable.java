@@ -0,0 +1,162 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A TokenTable interns the elements of the sequences to be compared,
+ * assigning each distinct element a dense integer id, so that the
+ * diff algorithms can compare elements with a single integer compare
+ * instead of a call to compareTo().
+ * <p>
+ * Elements are identified by compareTo(). Hashing them is much
+ * faster, but only agrees with compareTo() if equals() and hashCode()
+ * are consistent with it, which Comparable doesn't require (BigDecimal,
+ * for one, isn't); so only Strings, boxed primitives, and elements
+ * marked ConsistentWithEquals are hashed, and any other elements are
+ * kept in a TreeMap that's searched with compareTo(). Elements that
+ * compare as equal must all be hashed or all be searched for, as they
+ * are if they're all of one class.
+ * <p>
+ * A table may extend a base table: elements the base has interned
+ * keep their ids, and new elements are numbered after them, without
+ * modifying the base. So many threads can each extend one base table,
+ * as long as nothing interns any more elements in the base itself.
+ */
+public class TokenTable<T>
+{
+    /**
+     * Construct an empty table.
+     */
+    public TokenTable()
+    {
+        this(null);
+    }
+
+    /**
+     * Construct a table that extends another.
+     * @param base the base table, or null.
+     */
+    public TokenTable(TokenTable<T> base)
+    {
+        this.base = base;
+    }
+
+    /**
+     * The table this table extends, or null.
+     */
+    private final TokenTable<T> base;
+
+    /**
+     * The ids assigned so far, by element: elements that are
+     * consistent with equals() are hashed, others are ordered.
+     */
+    private final Map<T, Integer> hashedIds = new HashMap<T, Integer>();
+    private final Map<T, Integer> orderedIds = new TreeMap<T, Integer>();
+
+    /**
+     * Intern a sequence of elements. Elements equal to elements
+     * of previously interned sequences get the same id.
+     * @param sequence the elements.
+     * @return the sequence of element ids.
+     */
+    public int[] intern(List<T> sequence)
+    {
+        int[] result = new int[sequence.size()];
+        int   i = 0;
+
+        for (T element: sequence) {
+            result[i++] = intern(element);
+        }
+
+        return result;
+    }
+
+    /**
+     * Intern an element.
+     * @param element the element.
+     * @return the element's id.
+     */
+    public int intern(T element)
+    {
+        Integer id = lookup(element);
+
+        if (id == null) {
+            id = size();
+            (isConsistentWithEquals(element)? hashedIds: orderedIds).put(element, id);
+        }
+
+        return id;
+    }
+
+    /**
+     * Find the id of an element interned by this table or its base.
+     * @return the id, or null if the element hasn't been interned.
+     */
+    private Integer lookup(T element)
+    {
+        Integer id = base != null? base.lookup(element): null;
+        return id != null? id: (isConsistentWithEquals(element)? hashedIds: orderedIds).get(element);
+    }
+
+    /**
+     * Can an element be identified by equals() and hashCode(), rather
+     * than by compareTo()? Only if it's marked ConsistentWithEquals,
+     * or is a String or a boxed primitive, whose natural ordering is
+     * documented to be consistent with equals().
+     * @param element the element.
+     * @return true if the element may be hashed.
+     */
+    static boolean isConsistentWithEquals(Object element)
+    {
+        return
+            element instanceof ConsistentWithEquals ||
+            element instanceof String ||
+            element instanceof Character ||
+            element instanceof Integer ||
+            element instanceof Long ||
+            element instanceof Short ||
+            element instanceof Byte ||
+            element instanceof Boolean ||
+            element instanceof Double ||
+            element instanceof Float;
+    }
+
+    /**
+     * @return the number of distinct elements interned, including those of the base table.
+     */
+    public int size()
+    {
+        int size = hashedIds.size() + orderedIds.size();
+        return base != null? base.size() + size: size;
+    }
+}
@@ -0,0 +1,163 @@
+/****************************************************************************
+ * Copyright (c) 2013, NuoDB, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of NuoDB, Inc. nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software
+ *       without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL NUODB, INC. BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+ * OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ****************************************************************************/
+package com.nuodb.diff;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * WavefrontLcs fills in a longest common subsequence matrix on
+ * multiple cores. Cell (i+1,j+1) depends only on its neighbours
+ * to the left, above, and above-left, so the matrix is divided into
+ * square tiles, and all the tiles on one anti-diagonal of tiles can
+ * be filled concurrently once the previous anti-diagonal is done.
+ * The result is identical to LcsDiff.computeLcs().
+ */
+class WavefrontLcs
+{
+    /**
+     * Construct a WavefrontLcs that runs in the common ForkJoinPool.
+     */
+    WavefrontLcs()
+    {
+        this(ForkJoinPool.commonPool(), DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * @param pool the pool that fills the tiles.
+     * @param tileSize the width and height of a tile.
+     */
+    WavefrontLcs(ForkJoinPool pool, int tileSize)
+    {
+        this.pool       = pool;
+        this.tileSize   = tileSize;
+    }
+
+    /**
+     * The default tile size; a tile of this size is large enough
+     * to amortize the cost of a task, but its rows still fit in cache.
+     */
+    static final int DEFAULT_TILE_SIZE = 512;
+
+    private final ForkJoinPool pool;
+    private final int tileSize;
+
+    /**
+     * Choose the tile size for a parallelism threshold: a table at
+     * the threshold is at least four tiles each way, and tiles are
+     * no larger than the default. The default threshold gets the
+     * default tile size.
+     * @param parallelThreshold the number of cells at which tables are filled in parallel.
+     * @return the tile size.
+     */
+    static int tileSizeFor(long parallelThreshold)
+    {
+        return (int)Math.max(1, Math.min(DEFAULT_TILE_SIZE, (long)Math.sqrt(parallelThreshold) / 4));
+    }
+
+    /**
+     * Compute the LCS matrix of two sequences.
+     * @see LcsDiff#computeLcs(int[], int[])
+     */
+    int[][] computeLcs(int[] sequenceA, int[] sequenceB)
+    {
+        int[][] lcs = new int[sequenceA.length+1][sequenceB.length+1];
+
+        int tilesA = (sequenceA.length + tileSize - 1) / tileSize;
+        int tilesB = (sequenceB.length + tileSize - 1) / tileSize;
+
+        if (tilesA == 0 || tilesB == 0) {
+            // The initial conditions are the whole table.
+            return lcs;
+        }
+
+        // Tile (ti,tj) is on anti-diagonal ti+tj; each invoke() returns
+        // only once its whole anti-diagonal is filled, which also makes
+        // those cells visible to the tasks of the next anti-diagonal.
+        for (int diagonal = 0; diagonal < tilesA + tilesB - 1; diagonal++) {
+
+            int firstTile = Math.max(0, diagonal - tilesB + 1);
+            int lastTile  = Math.min(diagonal, tilesA - 1);
+
+            pool.invoke(new Diagonal(sequenceA, sequenceB, lcs, diagonal, firstTile, lastTile+1));
+        }
+
+        return lcs;
+    }
+
+    /**
+     * A Diagonal fills the tiles [fromTile..toTile) of one anti-diagonal,
+     * splitting itself in half until there is one tile per task.
+     */
+    private class Diagonal extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        Diagonal(int[] sequenceA, int[] sequenceB, int[][] lcs, int diagonal, int fromTile, int toTile)
+        {
+            this.sequenceA  = sequenceA;
+            this.sequenceB  = sequenceB;
+            this.lcs        = lcs;
+            this.diagonal   = diagonal;
+            this.fromTile   = fromTile;
+            this.toTile     = toTile;
+        }
+
+        private final int[] sequenceA;
+        private final int[] sequenceB;
+        private final int[][] lcs;
+        private final int diagonal;
+        private final int fromTile;
+        private final int toTile;
+
+        @Override
+        protected void compute()
+        {
+            if (toTile - fromTile == 1) {
+
+                int fromA = fromTile * tileSize;
+                int fromB = (diagonal - fromTile) * tileSize;
+
+                LcsDiff.fillLcs(
+                    sequenceA, fromA, Math.min(fromA + tileSize, sequenceA.length),
+                    sequenceB, fromB, Math.min(fromB + tileSize, sequenceB.length),
+                    lcs
+                );
+
+            } else {
+
+                int midTile = (fromTile + toTile) / 2;
+
+                invokeAll(
+                    new Diagonal(sequenceA, sequenceB, lcs, diagonal, fromTile, midTile),
+                    new Diagonal(sequenceA, sequenceB, lcs, diagonal, midTile, toTile)
+                );
+            }
+        }
+    }
+}